@@ -17,14 +17,20 @@ limitations under the License.
 package dk.magenta.libreoffice.online;
 
 import dk.magenta.libreoffice.online.service.LOOLService;
+import dk.magenta.libreoffice.online.service.PersonInfo;
+import dk.magenta.libreoffice.online.service.WOPIFileAccess;
+import dk.magenta.libreoffice.online.service.WOPIFileInfo;
+import dk.magenta.libreoffice.online.service.WOPIFileInfoCache;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
+import dk.magenta.libreoffice.online.service.WOPIPersonInfoCache;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
-import org.alfresco.service.cmr.version.VersionService;
 import org.alfresco.service.namespace.QName;
 import org.apache.commons.io.FilenameUtils;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.extensions.webscripts.*;
@@ -38,14 +44,43 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.Base64;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
 
-public class LOOLCheckFileInfoWebScript extends DeclarativeWebScript {
+/**
+ * CheckFileInfo. The node dependent part of the response is read with a single getProperties call, rendered to JSON
+ * once and kept in the WOPIFileInfoCache, so the repeated CheckFileInfo calls LOOL makes for an open document only
+ * add the few per user fields to a cached string. The user's friendly name comes from the WOPIPersonInfoCache, and
+ * whether they can write from the WOPIFileAccessCache.
+ *
+ * CheckFileInfo never writes, so it runs in a read only transaction.
+ */
+public class LOOLCheckFileInfoWebScript extends AbstractWebScript {
     private static final Logger logger = LoggerFactory.getLogger(LOOLCheckFileInfoWebScript.class);
+    //Convert lastModifiedTime to ISO 8601 according to:
+    // https://github.com/LibreOffice/online/blob/master/wsd/Storage.cpp#L464 or look in the
+    // std::unique_ptr<WopiStorage::WOPIFileInfo> WopiStorage::getWOPIFileInfo method
+    private static final DateTimeFormatter LAST_MODIFIED_FORMAT =
+            DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    //TODO Some properties are hard coded for now but we should look into making them sysadmin configurable
+    //We need to enable DisableCopy if we want to be able to insert image into the documents
+    //Search https://www.collaboraoffice.com/category/community-en/ for EnableOwnerTermination
+    // last found here: https://www.collaboraoffice.com/community-en/code-2-0-updates-2/
+    private static final String FIXED_JSON = "\"DisableCopy\":false"
+            + ",\"DisablePrint\":true"
+            + ",\"DisableExport\":true"
+            + ",\"EnableOwnerTermination\":false"
+            + ",\"HideExportOption\":true"
+            + ",\"HideSaveOption\":false"
+            + ",\"HidePrintOption\":true"
+            + ",\"SupportsGetLock\":true"
+            + ",\"SupportsLocks\":true";
+
     private LOOLService loolService;
     private NodeService nodeService;
-    private VersionService versionService;
+    private WOPIFileInfoCache fileInfoCache;
+    private WOPIPersonInfoCache personInfoCache;
+    private WOPIMetrics wopiMetrics;
 
     /**
      * https://msdn.microsoft.com/en-us/library/hh622920(v=office.12).aspx search for  "optional": false
@@ -54,57 +89,75 @@ public class LOOLCheckFileInfoWebScript extends DeclarativeWebScript {
      * because LOOL uses them internally to determine permission on rendering of certain elements.
      * Well I assume given the variable name(s), one should be able to semantically derive their relevance
      * @param req
-     * @param status
-     * @param cache
-     * @return
+     * @param res
+     * @throws IOException
      */
-    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
-        Map<String, Object> model = new HashMap<>();
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            executeInternal(req, res);
+            failed = false;
+        } catch (WebScriptException e) {
+            // A refusal, such as a 401 or a 404, is an answer rather than a failure
+            failed = e.getStatus() >= Status.STATUS_INTERNAL_SERVER_ERROR;
+            throw e;
+        } finally {
+            wopiMetrics.recordRequest(WOPIMetrics.Endpoint.CHECK_FILE_INFO, startNanos, failed);
+        }
+    }
+
+    private void executeInternal(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        String json;
         try {
-            NodeRef nodeRef = loolService.checkAccessToken(req);
-            Date lastModifiedDate =  (Date) nodeService.getProperty(nodeRef, ContentModel.PROP_MODIFIED);
-            //Convert lastModifiedTime to ISO 8601 according to:
-            // https://github.com/LibreOffice/online/blob/master/wsd/Storage.cpp#L464 or look in the
-            // std::unique_ptr<WopiStorage::WOPIFileInfo> WopiStorage::getWOPIFileInfo method
-            String dte = DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC)
-                         .format(Instant.ofEpochMilli(lastModifiedDate.getTime()));
-            //TODO Some properties are hard coded for now but we should look into making them sysadmin configurable
-            model.put("BaseFileName", getBaseFileName(nodeRef));
-            //We need to enable this if we want to be able to insert image into the documents
-            model.put("DisableCopy", false);
-            model.put("DisablePrint", true);
-            model.put("DisableExport", true);
-            model.put("HideExportOption", true);
-            model.put("HideSaveOption", false);
-            model.put("HidePrintOption", true);
-            model.put("LastModifiedTime", dte);
-            model.put("OwnerId", nodeService.getProperty(nodeRef, ContentModel.PROP_CREATOR).toString());
-            model.put("Size", getSize(nodeRef));
-            model.put("UserId", AuthenticationUtil.getRunAsUser());
-            model.put("UserCanWrite", true);
-            model.put("UserExtraInfo", "");
-            model.put("UserFriendlyName", AuthenticationUtil.getRunAsUser());
-            model.put("Version",  getDocumentVersion(nodeRef));
-            //Host from which token generation request originated
-            model.put("PostMessageOrigin", loolService.getAlfExternalHost().toString());
-            //Search https://www.collaboraoffice.com/category/community-en/ for EnableOwnerTermination
-            // last found here: https://www.collaboraoffice.com/community-en/code-2-0-updates-2/
-            model.put("EnableOwnerTermination",  false);
+            WOPIFileAccess fileAccess = loolService.checkFileAccess(req);
+            WOPIFileInfo fileInfo = fileInfoCache.get(fileAccess.getNodeRef(), this::loadFileInfo);
+            String userName = AuthenticationUtil.getRunAsUser();
+            PersonInfo person = personInfoCache.get(userName);
+            json = "{" + FIXED_JSON
+                    + "," + fileInfo.getJson()
+                    //Host from which token generation request originated
+                    + ",\"PostMessageOrigin\":" + JSONObject.quote(loolService.getAlfExternalHost().toString())
+                    + ",\"UserId\":" + JSONObject.quote(userName)
+                    + ",\"UserCanWrite\":" + fileAccess.canWrite()
+                    + ",\"UserFriendlyName\":" + JSONObject.quote(person != null ? person.getFriendlyName() : userName)
+                    + "}";
+        }
+        catch(WebScriptException we){
+            throw we;
         }
         catch(Exception ge){
             throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Error returning file nodeRef\nReason:\n"
                     + ge.getMessage());
         }
-        return model;
+        res.setContentType("application/json");
+        res.setContentEncoding("UTF-8");
+        res.getWriter().write(json);
     }
 
     /**
-     * Returns the actual file of the file itself (the cm:name property)
+     * Reads everything the response needs from the node in one getProperties call.
      * @param nodeRef
      * @return
      */
-    public String getBaseFileName(NodeRef nodeRef) {
-        String name = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+    protected WOPIFileInfo loadFileInfo(NodeRef nodeRef) {
+        Map<QName, Serializable> properties = nodeService.getProperties(nodeRef);
+        Date lastModifiedDate = (Date) properties.get(ContentModel.PROP_MODIFIED);
+        return new WOPIFileInfo(getBaseFileName(properties),
+                LAST_MODIFIED_FORMAT.format(Instant.ofEpochMilli(lastModifiedDate.getTime())),
+                properties.get(ContentModel.PROP_CREATOR).toString(),
+                getSize(properties),
+                getDocumentVersion(properties));
+    }
+
+    /**
+     * Returns the actual file of the file itself (the cm:name property)
+     * @param properties
+     * @return
+     */
+    public String getBaseFileName(Map<QName, Serializable> properties) {
+        String name = (String) properties.get(ContentModel.PROP_NAME);
         if (name != null) {
             return FilenameUtils.getName(name);
         } else {
@@ -114,11 +167,11 @@ public class LOOLCheckFileInfoWebScript extends DeclarativeWebScript {
 
     /**
      * Returns the size of the file
-     * @param nodeRef
+     * @param properties
      * @return
      */
-    public long getSize(NodeRef nodeRef) {
-        ContentData contentData = (ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+    public long getSize(Map<QName, Serializable> properties) {
+        ContentData contentData = (ContentData) properties.get(ContentModel.PROP_CONTENT);
         return contentData.getSize();
     }
 
@@ -145,18 +198,14 @@ public class LOOLCheckFileInfoWebScript extends DeclarativeWebScript {
     }
 
     /**
-     * This gets the version of a document. If the document hasn't been versioned yet, it adds a versioning aspect to it.
-     * Important to note that there are no checks as to whether the node is a document, hence the node passed to this
-     * method should/must have been sanitized/verified/vetted beforehand.
-     * @param nodeRef
+     * This gets the version of a document, or an empty string if it isn't versioned (yet). This is a read only call;
+     * documents are made versionable when a token is issued for them, see WOPIVersioningEnabler.
+     * @param properties the current properties of the node
      * @return
      */
-    public String getDocumentVersion(NodeRef nodeRef){
-        if(! nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)){
-            Map<QName, Serializable> initialVersionProps = new HashMap<QName, Serializable>(1, 1.0f);
-            versionService.ensureVersioningEnabled(nodeRef, initialVersionProps);
-        }
-        return nodeService.getProperty(nodeRef, ContentModel.PROP_VERSION_LABEL).toString();
+    public String getDocumentVersion(Map<QName, Serializable> properties){
+        Serializable versionLabel = properties.get(ContentModel.PROP_VERSION_LABEL);
+        return versionLabel != null ? versionLabel.toString() : "";
     }
 
     //<editor-fold desc="Bean setters">
@@ -168,8 +217,16 @@ public class LOOLCheckFileInfoWebScript extends DeclarativeWebScript {
         this.nodeService = nodeService;
     }
 
-    public void setVersionService(VersionService versionService) {
-        this.versionService = versionService;
+    public void setFileInfoCache(WOPIFileInfoCache fileInfoCache) {
+        this.fileInfoCache = fileInfoCache;
+    }
+
+    public void setPersonInfoCache(WOPIPersonInfoCache personInfoCache) {
+        this.personInfoCache = personInfoCache;
+    }
+
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
     }
     //</editor-fold>
 }
@@ -18,47 +18,232 @@ package dk.magenta.libreoffice.online;
 
 import dk.magenta.libreoffice.online.service.LOOLService;
 import dk.magenta.libreoffice.online.service.LOOLServiceImpl;
+import dk.magenta.libreoffice.online.service.WOPIContentCache;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.service.cmr.repository.*;
-import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 import org.springframework.extensions.webscripts.WebScriptResponse;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
 
+/**
+ * GetFile. Sends Content-Length, ETag and Last-Modified, answers If-None-Match / If-Modified-Since with a 304, and
+ * serves a single byte range if asked for one. Content in a file based content store is read straight from its file.
+ * Content in any other content store is served from the WOPIContentCache, so it is only read from the store once
+ * however many users open it. Content that ends before Content-Length bytes were sent fails the request, rather than
+ * leaving LOOL with a truncated document.
+ *
+ * The webscript runs without a transaction: the token, node and content reader are looked up in a short read only
+ * transaction, and the content is streamed after it has ended, so a slow client doesn't hold a database connection.
+ */
 public class LOOLGetFileWebScript extends AbstractWebScript {
+    private static final DateTimeFormatter HTTP_DATE_FORMAT =
+            DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     private LOOLService loolService;
     private NodeService nodeService;
     private ContentService contentService;
+    private WOPIContentCache contentCache;
+    private WOPIMetrics wopiMetrics;
+    private RetryingTransactionHelper retryingTransactionHelper;
 
     @Override
     public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
-        NodeRef nodeRef = loolService.checkAccessToken(req);
-        ContentData contentProp = (ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            executeInternal(req, res);
+            failed = false;
+        } catch (WebScriptException e) {
+            // A refusal, such as a 401 or a 404, is an answer rather than a failure
+            failed = e.getStatus() >= Status.STATUS_INTERNAL_SERVER_ERROR;
+            throw e;
+        } finally {
+            wopiMetrics.recordRequest(WOPIMetrics.Endpoint.GET_FILE, startNanos, failed);
+        }
+    }
+
+    private void executeInternal(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        FileContent fileContent = retryingTransactionHelper.doInTransaction(() -> {
+            NodeRef nodeRef = loolService.checkAccessToken(req);
+            return new FileContent((ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT),
+                    (Date) nodeService.getProperty(nodeRef, ContentModel.PROP_MODIFIED),
+                    contentService.getReader(nodeRef, ContentModel.PROP_CONTENT));
+        }, true, false);
+        ContentData contentProp = fileContent.contentProp;
+        Date modified = fileContent.modified;
+        long size = contentProp.getSize();
+        // A content URL always refers to the same binary, so it makes a strong validator
+        String eTag = "\"" + DigestUtils.md5Hex(contentProp.getContentUrl()) + "\"";
+
+        res.setHeader("ETag", eTag);
+        if (modified != null) {
+            res.setHeader("Last-Modified", HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(modified.getTime())));
+        }
+        res.setHeader("Accept-Ranges", "bytes");
+        if (isNotModified(req, eTag, modified)) {
+            res.setStatus(Status.STATUS_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long length = size;
+        String range = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(eTag))) {
+            long[] byteRange = parseRange(range, size);
+            if (byteRange == null) {
+                res.setStatus(Status.STATUS_REQUESTED_RANGE_NOT_SATISFIABLE);
+                res.setHeader("Content-Range", "bytes */" + size);
+                return;
+            }
+            if (byteRange.length == 2) {
+                start = byteRange[0];
+                length = byteRange[1] - byteRange[0] + 1;
+                res.setStatus(Status.STATUS_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", "bytes " + byteRange[0] + "-" + byteRange[1] + "/" + size);
+            }
+        }
+
         res.setContentType(contentProp.getMimetype());
         res.setContentEncoding(contentProp.getEncoding());
+        res.setHeader("Content-Length", Long.toString(length));
 
-        ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+        ContentReader reader = fileContent.reader;
+        try (OutputStream outputStream = res.getOutputStream()) {
+            File file = reader instanceof FileContentReader ? ((FileContentReader) reader).getFile()
+                    : contentCache.getFile(reader);
+            if (file == null || !transfer(file, start, length, outputStream)) {
+                try (InputStream inputStream = reader.getContentInputStream()) {
+                    copy(inputStream, outputStream, start, length);
+                }
+            }
+        }
+        wopiMetrics.recordBytesSent(length);
+    }
 
-        InputStream inputStream = null;
-        OutputStream outputStream = null;
+    /**
+     * Sends the requested part of the file.
+     *
+     * @return false if the file is gone (evicted from the content cache) and nothing was sent
+     */
+    private boolean transfer(File file, long start, long length, OutputStream outputStream) throws IOException {
+        InputStream fileInputStream;
         try {
-            inputStream = reader.getContentInputStream();
-            outputStream = res.getOutputStream();
-            IOUtils.copy(inputStream, outputStream);
-        } finally {
-            if (inputStream != null) {
-                inputStream.close();
+            fileInputStream = Files.newInputStream(file.toPath());
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        try (InputStream inputStream = fileInputStream) {
+            copy(inputStream, outputStream, start, length);
+        }
+        return true;
+    }
+
+    /**
+     * Copies length bytes, starting at start, from the content to the response.
+     *
+     * @throws IOException if the content ends before all of them were copied
+     */
+    private static void copy(InputStream inputStream, OutputStream outputStream, long start, long length)
+            throws IOException {
+        long copied = IOUtils.copyLarge(inputStream, outputStream, start, length, new byte[COPY_BUFFER_SIZE]);
+        if (copied < length) {
+            throw new IOException("Content ended after " + copied + " of " + length + " bytes");
+        }
+    }
+
+    /**
+     * If-None-Match takes precedence over If-Modified-Since, as per RFC 7232.
+     */
+    private boolean isNotModified(WebScriptRequest req, String eTag, Date modified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (ifNoneMatch.trim().equals("*")) {
+                return true;
             }
-            if (outputStream != null) {
-                outputStream.close();
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(eTag)) {
+                    return true;
+                }
             }
+            return false;
         }
+        String ifModifiedSince = req.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null && modified != null) {
+            try {
+                long since = Instant.from(HTTP_DATE_FORMAT.parse(ifModifiedSince)).toEpochMilli();
+                // HTTP dates have a resolution of one second
+                return modified.getTime() / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
     }
 
+    /**
+     * Parses a "bytes=" Range header. Only a single range is supported.
+     *
+     * @return the first and last byte position, an empty array if the range should be ignored and the whole file sent,
+     * or null if the range can't be satisfied
+     */
+    private long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                // Suffix range: the last n bytes
+                long suffixLength = Long.parseLong(spec.substring(1));
+                if (suffixLength <= 0 || size == 0) {
+                    return null;
+                }
+                first = Math.max(0, size - suffixLength);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? size - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)),
+                        size - 1);
+            }
+            if (first >= size || first > last) {
+                return null;
+            }
+            return new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
 
     public void setLoolService(LOOLServiceImpl loolService) {
         this.loolService = loolService;
@@ -71,4 +256,31 @@ public class LOOLGetFileWebScript extends AbstractWebScript {
     public void setContentService(ContentService contentService) {
         this.contentService = contentService;
     }
-}
\ No newline at end of file
+
+    public void setContentCache(WOPIContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
+    }
+
+    public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
+        this.retryingTransactionHelper = retryingTransactionHelper;
+    }
+
+    /**
+     * What is looked up in the transaction. The reader can still be read once the transaction has ended.
+     */
+    private static final class FileContent {
+        private final ContentData contentProp;
+        private final Date modified;
+        private final ContentReader reader;
+
+        private FileContent(ContentData contentProp, Date modified, ContentReader reader) {
+            this.contentProp = contentProp;
+            this.modified = modified;
+            this.reader = reader;
+        }
+    }
+}
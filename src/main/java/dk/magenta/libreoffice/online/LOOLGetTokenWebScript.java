@@ -18,6 +18,9 @@ package dk.magenta.libreoffice.online;
 
 import dk.magenta.libreoffice.online.service.LOOLService;
 import dk.magenta.libreoffice.online.service.WOPIAccessTokenInfo;
+import dk.magenta.libreoffice.online.service.WOPIContentPrefetcher;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
+import dk.magenta.libreoffice.online.service.WOPIVersioningEnabler;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.springframework.extensions.webscripts.*;
 
@@ -27,6 +30,25 @@ import java.util.Map;
 
 public class LOOLGetTokenWebScript extends DeclarativeWebScript {
     private LOOLService loolService;
+    private WOPIVersioningEnabler versioningEnabler;
+    private WOPIContentPrefetcher contentPrefetcher;
+    private WOPIMetrics wopiMetrics;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.execute(req, res);
+            failed = false;
+        } catch (WebScriptException e) {
+            // A refusal, such as a 401 or a 404, is an answer rather than a failure
+            failed = e.getStatus() >= Status.STATUS_INTERNAL_SERVER_ERROR;
+            throw e;
+        } finally {
+            wopiMetrics.recordRequest(WOPIMetrics.Endpoint.GET_TOKEN, startNanos, failed);
+        }
+    }
 
     protected Map<String, Object> executeImpl(
             WebScriptRequest req, Status status, Cache cache) {
@@ -40,15 +62,16 @@ public class LOOLGetTokenWebScript extends DeclarativeWebScript {
         if (action == null) {
             throw new WebScriptException("No 'action' parameter supplied");
         }
-        WOPIAccessTokenInfo tokenInfo = loolService.createAccessToken(loolService.getFileIdForNodeRef(nodeRef));
         String wopiSrcUrl;
         try {
             wopiSrcUrl = loolService.getWopiSrcURL(nodeRef, action);
         } catch (IOException e) {
-            status.setCode(Status.STATUS_INTERNAL_SERVER_ERROR, "Failed to " +
-                    "get wopiSrcURL");
-            return model;
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Failed to get wopiSrcURL", e);
         }
+        // Only once LOOL can be pointed at the document is it worth warming it up
+        WOPIAccessTokenInfo tokenInfo = loolService.createAccessToken(loolService.getFileIdForNodeRef(nodeRef));
+        versioningEnabler.onTokenIssued(nodeRef);
+        contentPrefetcher.prefetchAfterCommit(nodeRef, action);
         model.put("access_token", tokenInfo.getAccessToken());
         model.put("access_token_ttl", tokenInfo.getExpiresAt().getTime());
         model.put("wopi_src_url", wopiSrcUrl);
@@ -58,4 +81,16 @@ public class LOOLGetTokenWebScript extends DeclarativeWebScript {
     public void setLoolService(LOOLService loolService) {
         this.loolService = loolService;
     }
-}
\ No newline at end of file
+
+    public void setVersioningEnabler(WOPIVersioningEnabler versioningEnabler) {
+        this.versioningEnabler = versioningEnabler;
+    }
+
+    public void setContentPrefetcher(WOPIContentPrefetcher contentPrefetcher) {
+        this.contentPrefetcher = contentPrefetcher;
+    }
+
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
+    }
+}
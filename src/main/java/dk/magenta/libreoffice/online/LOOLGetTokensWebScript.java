@@ -0,0 +1,152 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package dk.magenta.libreoffice.online;
+
+import dk.magenta.libreoffice.online.service.LOOLService;
+import dk.magenta.libreoffice.online.service.WOPIAccessTokenInfo;
+import dk.magenta.libreoffice.online.service.WOPIFileAccess;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
+import dk.magenta.libreoffice.online.service.WOPIVersioningEnabler;
+import org.alfresco.repo.node.NodeBulkLoader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Issues tokens and WOPI src URLs for a list of documents in one call, e.g. for all the documents on a page of a
+ * document list. Expects a JSON body of the form {"nodeRefs": ["workspace://SpacesStore/...", ...], "action": "edit"}.
+ *
+ * The nodes are loaded into the node caches with one bulk load up front, so reading their mimetypes doesn't cost a
+ * query per node, and all the tokens are issued in the one transaction. Whether the user can read each document is
+ * checked before its token is issued. A document that doesn't exist or can't be read, or has no WOPI src URL, gets an
+ * error entry and no token, rather than failing the whole request. Making the documents versionable is left to the
+ * WOPIVersioningEnabler's background batches, so the transaction only issues tokens. The content isn't prefetched,
+ * as only few of the documents listed are ever opened.
+ */
+public class LOOLGetTokensWebScript extends DeclarativeWebScript {
+    private LOOLService loolService;
+    private NodeBulkLoader nodeBulkLoader;
+    private WOPIVersioningEnabler versioningEnabler;
+    private WOPIMetrics wopiMetrics;
+    private int maxNodeRefs;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.execute(req, res);
+            failed = false;
+        } catch (WebScriptException e) {
+            // A refusal, such as a 401 or a 404, is an answer rather than a failure
+            failed = e.getStatus() >= Status.STATUS_INTERNAL_SERVER_ERROR;
+            throw e;
+        } finally {
+            wopiMetrics.recordRequest(WOPIMetrics.Endpoint.GET_TOKENS, startNanos, failed);
+        }
+    }
+
+    protected Map<String, Object> executeImpl(
+            WebScriptRequest req, Status status, Cache cache) {
+        String action;
+        List<NodeRef> nodeRefs;
+        try {
+            JSONObject body = new JSONObject(req.getContent().getContent());
+            action = body.optString("action", null);
+            JSONArray nodeRefsJson = body.optJSONArray("nodeRefs");
+            if (nodeRefsJson == null) {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No 'nodeRefs' supplied");
+            }
+            // Asking twice for the same document gets it once
+            Set<NodeRef> distinct = new LinkedHashSet<>();
+            for (int i = 0; i < nodeRefsJson.length(); i++) {
+                distinct.add(new NodeRef(nodeRefsJson.getString(i)));
+            }
+            nodeRefs = new ArrayList<>(distinct);
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid request body: " + e.getMessage());
+        }
+        if (action == null) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No 'action' supplied");
+        }
+        if (nodeRefs.size() > maxNodeRefs) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "At most " + maxNodeRefs
+                    + " nodeRefs can be requested at once");
+        }
+
+        nodeBulkLoader.cacheNodes(nodeRefs);
+
+        List<Map<String, Object>> tokens = new ArrayList<>(nodeRefs.size());
+        for (NodeRef nodeRef : nodeRefs) {
+            Map<String, Object> token = new HashMap<>();
+            token.put("nodeRef", nodeRef.toString());
+            tokens.add(token);
+            // Checked before touching the node, as an access denied inside the transaction would roll it back
+            WOPIFileAccess fileAccess = loolService.resolveFileAccess(nodeRef);
+            if (!fileAccess.exists() || !fileAccess.canRead()) {
+                token.put("error", "Not found");
+                continue;
+            }
+            String wopiSrcUrl;
+            try {
+                wopiSrcUrl = loolService.getWopiSrcURL(nodeRef, action);
+            } catch (IOException e) {
+                token.put("error", "Failed to get wopiSrcURL");
+                continue;
+            }
+            WOPIAccessTokenInfo tokenInfo = loolService.createAccessToken(loolService.getFileIdForNodeRef(nodeRef));
+            versioningEnabler.onBulkTokenIssued(fileAccess);
+            token.put("access_token", tokenInfo.getAccessToken());
+            token.put("access_token_ttl", tokenInfo.getExpiresAt().getTime());
+            token.put("wopi_src_url", wopiSrcUrl);
+        }
+
+        Map<String, Object> model = new HashMap<>();
+        model.put("tokens", tokens);
+        return model;
+    }
+
+    public void setLoolService(LOOLService loolService) {
+        this.loolService = loolService;
+    }
+
+    public void setNodeBulkLoader(NodeBulkLoader nodeBulkLoader) {
+        this.nodeBulkLoader = nodeBulkLoader;
+    }
+
+    public void setVersioningEnabler(WOPIVersioningEnabler versioningEnabler) {
+        this.versioningEnabler = versioningEnabler;
+    }
+
+    public void setMaxNodeRefs(int maxNodeRefs) {
+        this.maxNodeRefs = maxNodeRefs;
+    }
+
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package dk.magenta.libreoffice.online;
+
+import dk.magenta.libreoffice.online.service.LOOLService;
+import dk.magenta.libreoffice.online.service.WOPILoader;
+import org.springframework.extensions.webscripts.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reports whether the module is ready to hand out WOPI src URLs, and where the discovery.xml it serves came from.
+ * Responds with 503 until a discovery.xml (bundled or fetched from the LOOL server) has been loaded.
+ *
+ * The same class serves /lool/health, which anyone may call, and /lool/health/details, for admins only. Only the
+ * latter reports the discovery URL, when the discovery.xml was last loaded and the last error loading it, which may
+ * reveal internal host names.
+ */
+public class LOOLHealthWebScript extends DeclarativeWebScript {
+    private LOOLService loolService;
+    private boolean details;
+
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+        Map<String, Object> model = new HashMap<>();
+        WOPILoader wopiLoader = loolService.getWopiLoader();
+        boolean ready = wopiLoader.isReady();
+        if (!ready) {
+            status.setCode(Status.STATUS_SERVICE_UNAVAILABLE);
+        }
+        model.put("ready", ready);
+        model.put("discovery_source", wopiLoader.getSource().name());
+        if (!details) {
+            return model;
+        }
+        model.put("discovery_url", wopiLoader.getDiscoveryURL().toString());
+        model.put("discovery_last_refreshed", wopiLoader.getLastRefreshed());
+        model.put("discovery_last_error", wopiLoader.getLastError() != null ? wopiLoader.getLastError() : "");
+        return model;
+    }
+
+    public void setLoolService(LOOLService loolService) {
+        this.loolService = loolService;
+    }
+
+    public void setDetails(boolean details) {
+        this.details = details;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package dk.magenta.libreoffice.online;
+
+import dk.magenta.libreoffice.online.service.LOOLService;
+import dk.magenta.libreoffice.online.service.WOPIFileAccess;
+import dk.magenta.libreoffice.online.service.WOPILockResult;
+import dk.magenta.libreoffice.online.service.WOPILockService;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+
+/**
+ * Handles the WOPI lock operations, selected by the X-WOPI-Override header:
+ * LOCK, GET_LOCK, REFRESH_LOCK, UNLOCK and UNLOCK_AND_RELOCK.
+ * See https://wopi.readthedocs.io/projects/wopirest/en/latest/files/Lock.html
+ *
+ * A lock conflict is answered with a 409 carrying the current lock in the X-WOPI-Lock header. Any token that can read
+ * the file may ask for its lock, but only a token that can write it may change the lock.
+ */
+public class LOOLLockWebScript extends AbstractWebScript {
+    private static final String LOCK_HEADER = "X-WOPI-Lock";
+    private static final String OLD_LOCK_HEADER = "X-WOPI-OldLock";
+    private static final String LOCK_FAILURE_REASON_HEADER = "X-WOPI-LockFailureReason";
+
+    private LOOLService loolService;
+    private WOPILockService wopiLockService;
+    private WOPIMetrics wopiMetrics;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            executeInternal(req, res);
+            failed = false;
+        } catch (WebScriptException e) {
+            // A refusal, such as a 401 or a 404, is an answer rather than a failure
+            failed = e.getStatus() >= Status.STATUS_INTERNAL_SERVER_ERROR;
+            throw e;
+        } finally {
+            wopiMetrics.recordRequest(WOPIMetrics.Endpoint.LOCK, startNanos, failed);
+        }
+    }
+
+    private void executeInternal(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        String wopiOverrideHeader = req.getHeader("X-WOPI-Override");
+        if (wopiOverrideHeader == null) {
+            wopiOverrideHeader = req.getHeader("X-WOPIOverride");
+        }
+        if (wopiOverrideHeader == null) {
+            throw new WebScriptException("X-WOPI-Override header must be present");
+        }
+
+        WOPIFileAccess fileAccess = loolService.checkFileAccess(req);
+        if (!fileAccess.canWrite() && !"GET_LOCK".equals(wopiOverrideHeader)) {
+            throw new WebScriptException(Status.STATUS_UNAUTHORIZED,
+                    "The user of the access token can't write the file");
+        }
+        String fileId = req.getServiceMatch().getTemplateVars().get("fileId");
+        String lockId = req.getHeader(LOCK_HEADER);
+
+        WOPILockResult result;
+        switch (wopiOverrideHeader) {
+            case "LOCK":
+                String oldLockId = req.getHeader(OLD_LOCK_HEADER);
+                result = oldLockId == null
+                        ? wopiLockService.lock(fileId, requireLock(lockId))
+                        : wopiLockService.unlockAndRelock(fileId, oldLockId, requireLock(lockId));
+                break;
+            case "UNLOCK_AND_RELOCK":
+                result = wopiLockService.unlockAndRelock(fileId, requireLock(req.getHeader(OLD_LOCK_HEADER)),
+                        requireLock(lockId));
+                break;
+            case "REFRESH_LOCK":
+                result = wopiLockService.refreshLock(fileId, requireLock(lockId));
+                break;
+            case "UNLOCK":
+                result = wopiLockService.unlock(fileId, requireLock(lockId));
+                break;
+            case "GET_LOCK":
+                result = null;
+                res.setHeader(LOCK_HEADER, wopiLockService.getLock(fileId));
+                break;
+            default:
+                throw new WebScriptException(Status.STATUS_NOT_IMPLEMENTED,
+                        "Unsupported X-WOPI-Override: " + wopiOverrideHeader);
+        }
+
+        if (result != null && !result.isSuccess()) {
+            res.setStatus(Status.STATUS_CONFLICT);
+            res.setHeader(LOCK_HEADER, result.getCurrentLock());
+            res.setHeader(LOCK_FAILURE_REASON_HEADER, result.getFailureReason());
+        } else {
+            res.setStatus(Status.STATUS_OK);
+        }
+    }
+
+    private String requireLock(String lockId) {
+        if (lockId == null || lockId.isEmpty()) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "The X-WOPI-Lock header must be present");
+        }
+        return lockId;
+    }
+
+    public void setLoolService(LOOLService loolService) {
+        this.loolService = loolService;
+    }
+
+    public void setWopiLockService(WOPILockService wopiLockService) {
+        this.wopiLockService = wopiLockService;
+    }
+
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package dk.magenta.libreoffice.online;
+
+import dk.magenta.libreoffice.online.service.WOPIEndpointTimer;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+
+/**
+ * Publishes the WOPIMetrics in the Prometheus text exposition format, for scraping.
+ */
+public class LOOLMetricsWebScript extends AbstractWebScript {
+    private static final long[] BUCKET_BOUNDS_MS = WOPIEndpointTimer.getBucketBoundsMillis();
+
+    private WOPIMetrics wopiMetrics;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        StringBuilder out = new StringBuilder(4096);
+
+        out.append("# HELP wopi_request_duration_seconds Time taken to serve WOPI requests.\n");
+        out.append("# TYPE wopi_request_duration_seconds histogram\n");
+        for (WOPIMetrics.Endpoint endpoint : WOPIMetrics.Endpoint.values()) {
+            WOPIEndpointTimer timer = wopiMetrics.getTimer(endpoint);
+            String label = "endpoint=\"" + endpoint.getDisplayName() + "\"";
+            long[] counts = timer.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < BUCKET_BOUNDS_MS.length ? Double.toString(BUCKET_BOUNDS_MS[i] / 1000d) : "+Inf";
+                out.append("wopi_request_duration_seconds_bucket{").append(label).append(",le=\"").append(le)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("wopi_request_duration_seconds_sum{").append(label).append("} ")
+                    .append(timer.getTotalNanos() / 1e9).append('\n');
+            out.append("wopi_request_duration_seconds_count{").append(label).append("} ").append(cumulative)
+                    .append('\n');
+        }
+
+        out.append("# HELP wopi_request_errors_total WOPI requests that failed with a server error (5xx).\n");
+        out.append("# TYPE wopi_request_errors_total counter\n");
+        for (WOPIMetrics.Endpoint endpoint : WOPIMetrics.Endpoint.values()) {
+            out.append("wopi_request_errors_total{endpoint=\"").append(endpoint.getDisplayName()).append("\"} ")
+                    .append(wopiMetrics.getTimer(endpoint).getErrorCount()).append('\n');
+        }
+
+        metric(out, "wopi_bytes_sent_total", "counter", "File bytes sent by GetFile.",
+                wopiMetrics.getBytesSent());
+        metric(out, "wopi_bytes_received_total", "counter", "File bytes received by PutFile.",
+                wopiMetrics.getBytesReceived());
+        metric(out, "wopi_transaction_retries_total", "counter", "Transactions retried.",
+                wopiMetrics.getTransactionRetryCount());
+        metric(out, "wopi_autosave_failures_total", "counter", "Coalesced autosaves that failed to be written.",
+                wopiMetrics.getAutosaveFailureCount());
+        metric(out, "wopi_content_cache_hits_total", "counter", "GetFile requests served from the content cache.",
+                wopiMetrics.getContentCacheHitCount());
+        metric(out, "wopi_content_cache_misses_total", "counter", "GetFile requests that loaded the content cache.",
+                wopiMetrics.getContentCacheMissCount());
+        metric(out, "wopi_access_tokens", "gauge", "Access tokens held by the token store, -1 if it holds none.",
+                wopiMetrics.getAccessTokenCount());
+        metric(out, "wopi_discovery_age_seconds", "gauge",
+                "Seconds since discovery.xml was last fetched, -1 if it never was.",
+                wopiMetrics.getDiscoveryAgeSeconds());
+
+        res.setContentType("text/plain; version=0.0.4");
+        res.setContentEncoding("UTF-8");
+        res.getWriter().write(out.toString());
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
+    }
+}
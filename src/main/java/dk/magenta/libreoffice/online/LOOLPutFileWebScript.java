@@ -18,27 +18,114 @@ package dk.magenta.libreoffice.online;
 
 import dk.magenta.libreoffice.online.service.PersonInfo;
 import dk.magenta.libreoffice.online.service.WOPIAccessTokenInfo;
+import dk.magenta.libreoffice.online.service.WOPIFileAccess;
+import dk.magenta.libreoffice.online.service.WOPILockService;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
+import dk.magenta.libreoffice.online.service.WOPIModel;
+import dk.magenta.libreoffice.online.service.WOPIPostSaveProcessor;
+import dk.magenta.libreoffice.online.service.WOPISaveCoalescer;
 import dk.magenta.libreoffice.online.service.WOPITokenService;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.lock.LockService;
 import org.alfresco.service.cmr.repository.*;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.TempFileProvider;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.extensions.webscripts.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * PutFile. The request body is first spooled to a temporary file, outside of any transaction, and the content is then
+ * written from the spooled copy in a short transaction. That way a retried transaction writes the full content again
+ * rather than an already consumed request stream, and a database connection is only held for the write itself.
+ *
+ * Uploads larger than maxUploadSizeBytes are refused with a 413. At most maxConcurrentUploads bodies are spooled at
+ * the same time; further requests wait up to uploadPermitWaitMs for a slot and are then refused with a 503 so LOOL
+ * retries the save later.
+ *
+ * If the file holds a WOPI lock, the request must carry the same lock in X-WOPI-Lock or it is refused with a 409
+ * before the body is read. The Alfresco lock backing the WOPI lock belongs to the user who took it, so it is suspended
+ * for the write to let the other users editing the same document save.
+ *
+ * The transaction only writes the content. Sniffing the mimetype and encoding of the new content and logging the
+ * save are left to the WOPIPostSaveProcessor, after commit, so the time LOOL waits for a save doesn't depend on them.
+ *
+ * If autosave coalescing is enabled, autosaves are acknowledged as soon as they are spooled and handed to the
+ * WOPISaveCoalescer, which only writes the newest of the autosaves made within its window. They are acknowledged with
+ * the LastModifiedTime the file has until they are written.
+ *
+ * A SHA-256 digest of the body is taken while it is spooled and recorded on the node (lool:contentDigest) when it is
+ * written. A save whose digest matches that of the current content is not written at all; it is answered with the
+ * LastModifiedTime of the file as it stands.
+ *
+ * If checkTimestamp is set, a save carrying an X-LOOL-WOPI-Timestamp older than a change made to the content outside
+ * of LOOL is refused, before the body is read, with a 409 and LOOL_STATUS_DOC_CHANGED, so LOOL can ask the user what
+ * to do rather than overwrite the change.
+ */
 public class LOOLPutFileWebScript extends AbstractWebScript {
     private static final Log logger = LogFactory.getLog(LOOLPutFileWebScript.class);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // As in CheckFileInfo, which is where LOOL gets the timestamp it sends back in X-LOOL-WOPI-Timestamp
+    private static final DateTimeFormatter LAST_MODIFIED_FORMAT =
+            DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC);
+    // LOOL_STATUS_DOC_CHANGED: the document was changed in storage since LOOL loaded it
+    private static final String DOC_CHANGED_BODY = "{\"LOOLStatusCode\":1010}";
+
     private WOPITokenService wopiTokenService;
+    private WOPILockService wopiLockService;
+    private LockService lockService;
     private NodeService nodeService;
     private ContentService contentService;
+    private MimetypeService mimetypeService;
+    private WOPIPostSaveProcessor postSaveProcessor;
+    private WOPISaveCoalescer saveCoalescer;
     private RetryingTransactionHelper retryingTransactionHelper;
+    private WOPIMetrics wopiMetrics;
+    private boolean checkTimestamp;
+    private long maxUploadSizeBytes;
+    private long uploadPermitWaitMs;
+    private Semaphore uploadPermits;
 
     @Override
     public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            executeInternal(req, res);
+            failed = false;
+        } catch (WebScriptException e) {
+            // A refusal, such as a 401 or a 404, is an answer rather than a failure
+            failed = e.getStatus() >= Status.STATUS_INTERNAL_SERVER_ERROR;
+            throw e;
+        } finally {
+            wopiMetrics.recordRequest(WOPIMetrics.Endpoint.PUT_FILE, startNanos, failed);
+        }
+    }
+
+    private void executeInternal(WebScriptRequest req, WebScriptResponse res) throws IOException {
 
         String wopiOverrideHeader = req.getHeader("X-WOPI-Override");
         if (wopiOverrideHeader == null) {
@@ -48,56 +135,288 @@ public class LOOLPutFileWebScript extends AbstractWebScript {
             throw new WebScriptException("X-WOPI-Override header must be present and equal to 'PUT'");
         }
 
+        final WOPIAccessTokenInfo tokenInfo = wopiTokenService.getTokenInfo(req);
+        if (tokenInfo == null || !tokenInfo.isValid()) {
+            throw new WebScriptException(Status.STATUS_UNAUTHORIZED, "Access token invalid or expired");
+        }
+        // Usually resolved when the token was issued, so this is a map lookup
+        WOPIFileAccess fileAccess = retryingTransactionHelper.doInTransaction(
+                () -> wopiTokenService.getFileAccess(tokenInfo), true, false);
+        if (!fileAccess.exists()) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "File not found");
+        }
+        if (!fileAccess.canWrite()) {
+            throw new WebScriptException(Status.STATUS_UNAUTHORIZED,
+                    "The user of the access token can't write the file");
+        }
+
+        String currentLock = wopiLockService.getLock(tokenInfo.getFileId());
+        if (!currentLock.isEmpty() && !currentLock.equals(req.getHeader("X-WOPI-Lock"))) {
+            res.setStatus(Status.STATUS_CONFLICT);
+            res.setHeader("X-WOPI-Lock", currentLock);
+            return;
+        }
+
+        String timestamp = req.getHeader("X-LOOL-WOPI-Timestamp");
+        if (checkTimestamp && timestamp != null && isChangedSince(tokenInfo, timestamp)) {
+            res.setStatus(Status.STATUS_CONFLICT);
+            res.setContentType("application/json");
+            res.setContentEncoding("UTF-8");
+            res.getWriter().write(DOC_CHANGED_BODY);
+            return;
+        }
+
+        MessageDigest messageDigest = DigestUtils.getSha256Digest();
+        final File spooledContent = spool(req, messageDigest);
+        final String digest = Hex.encodeHexString(messageDigest.digest());
+        wopiMetrics.recordBytesReceived(spooledContent.length());
+
+        // LOOL often saves a document it hasn't changed, e.g. when it is closed
+        final Date[] unchangedSince = new Date[1];
+        boolean unchanged;
+        try {
+            unchanged = saveCoalescer.discardIfUnchanged(tokenInfo.getFileId(),
+                    () -> (unchangedSince[0] = getModifiedIfUnchanged(tokenInfo, digest)) != null);
+        } catch (RuntimeException e) {
+            delete(spooledContent);
+            throw e;
+        }
+        if (unchanged) {
+            delete(spooledContent);
+            writeLastModifiedTime(res, unchangedSince[0]);
+            return;
+        }
+
+        // Once parked, the coalescer owns the spooled file. It refuses to park the autosave if the last one it parked
+        // failed to be written, or a save of the file is being written, so this one is written now and LOOL sees
+        // whether it fails.
+        if (saveCoalescer.isEnabled() && isAutosave(req)) {
+            Date acknowledged = saveCoalescer.defer(tokenInfo.getFileId(), tokenInfo.getAccessToken(), spooledContent,
+                    content -> writeContent(tokenInfo, content, digest), () -> getModified(tokenInfo));
+            if (acknowledged != null) {
+                writeLastModifiedTime(res, acknowledged);
+                return;
+            }
+        }
+        final Date[] modified = new Date[1];
         try {
-            WOPIAccessTokenInfo tokenInfo = wopiTokenService.getTokenInfo(req);
-            //Verifying that the user actually exists
-            PersonInfo person = wopiTokenService.getUserInfoOfToken(tokenInfo);
-            final NodeRef nodeRef = wopiTokenService.getFileNodeRef(tokenInfo);
-            if (StringUtils.isBlank(person.getUserName()) && person.getUserName() != tokenInfo.getUserName())
-                throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR,
-                        "The user no longer appears to exist.");
-
-            if (tokenInfo != null) {
-                //https://community.alfresco.com/message/809749-re-why-is-the-modifier-of-a-content-a-random-user-from-the-list-of-logged-in-users?commentID=809749&et=watches.email.thread#comment-809749
-                retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
-                    @Override
-                    public Void execute() throws Throwable {
-                        try {
-                            AuthenticationUtil.setFullyAuthenticatedUser(tokenInfo.getUserName());
-                            ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
-                            writer.putContent(req.getContent().getInputStream());
-                            writer.guessMimetype((String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME));
-                            writer.guessEncoding();
-
-                            logger.info("\n****** Debug testing ********\n\t\tToken: " + tokenInfo.getAccessToken()
-                                    + "\n\t\tFileId: " + tokenInfo.getFileId() + "\n\t\tUserName: " + tokenInfo.getUserName() + "\n");
-                        } finally {
-                            AuthenticationUtil.clearCurrentSecurityContext();
-                        }
-                        return null;
+            saveCoalescer.writeNow(tokenInfo.getFileId(), spooledContent,
+                    content -> modified[0] = writeContent(tokenInfo, content, digest));
+        } catch (ContentIOException e) {
+            logger.error("Failed to write the content of file " + tokenInfo.getFileId(), e);
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Error writing to file", e);
+        } finally {
+            delete(spooledContent);
+        }
+        writeLastModifiedTime(res, modified[0]);
+    }
+
+    /**
+     * Returns whether the file of the token was changed since the given timestamp, which is the LastModifiedTime LOOL
+     * last got for the file. The only change that doesn't count is the write of an autosave coalesced for the same
+     * token, as LOOL wasn't given the LastModifiedTime that write left. A save from another LOOL session does count.
+     * Only reads, in a read only transaction.
+     *
+     * @param tokenInfo
+     * @param timestamp
+     * @return
+     */
+    private boolean isChangedSince(final WOPIAccessTokenInfo tokenInfo, String timestamp) {
+        final long since;
+        try {
+            since = Instant.from(LAST_MODIFIED_FORMAT.parse(timestamp)).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            logger.warn("Ignoring unparseable X-LOOL-WOPI-Timestamp: " + timestamp);
+            return false;
+        }
+        return AuthenticationUtil.runAs(() -> retryingTransactionHelper.doInTransaction(() -> {
+            Date modified = (Date) nodeService.getProperty(wopiTokenService.getFileNodeRef(tokenInfo),
+                    ContentModel.PROP_MODIFIED);
+            return modified != null && modified.getTime() != since && !saveCoalescer.isCoalescedWrite(
+                    tokenInfo.getFileId(), tokenInfo.getAccessToken(), since, modified.getTime());
+        }, true, false), tokenInfo.getUserName());
+    }
+
+    /**
+     * Returns the modification date of the file of the token if its content has the given digest, or null if it
+     * hasn't or that isn't known. Only reads, in a read only transaction.
+     *
+     * @param tokenInfo
+     * @param digest
+     * @return
+     */
+    private Date getModifiedIfUnchanged(final WOPIAccessTokenInfo tokenInfo, final String digest) {
+        return AuthenticationUtil.runAs(() -> retryingTransactionHelper.doInTransaction(() -> {
+            NodeRef nodeRef = wopiTokenService.getFileNodeRef(tokenInfo);
+            Map<QName, Serializable> properties = nodeService.getProperties(nodeRef);
+            ContentData contentData = (ContentData) properties.get(ContentModel.PROP_CONTENT);
+            if (contentData == null || !digest.equals(properties.get(WOPIModel.PROP_DIGEST))
+                    || !contentData.getContentUrl().equals(properties.get(WOPIModel.PROP_DIGEST_CONTENT_URL))) {
+                return null;
+            }
+            return (Date) properties.get(ContentModel.PROP_MODIFIED);
+        }, true, false), tokenInfo.getUserName());
+    }
+
+    /**
+     * Returns the modification date of the file of the token. Only reads, in a read only transaction.
+     *
+     * @param tokenInfo
+     * @return
+     */
+    private Date getModified(final WOPIAccessTokenInfo tokenInfo) {
+        return AuthenticationUtil.runAs(() -> retryingTransactionHelper.doInTransaction(
+                () -> (Date) nodeService.getProperty(wopiTokenService.getFileNodeRef(tokenInfo),
+                        ContentModel.PROP_MODIFIED), true, false), tokenInfo.getUserName());
+    }
+
+    /**
+     * Answers with the LastModifiedTime of the file, in the format CheckFileInfo uses.
+     */
+    private void writeLastModifiedTime(WebScriptResponse res, Date lastModified) throws IOException {
+        res.setContentType("application/json");
+        res.setContentEncoding("UTF-8");
+        res.getWriter().write("{\"LastModifiedTime\":\""
+                + LAST_MODIFIED_FORMAT.format(Instant.ofEpochMilli(lastModified.getTime())) + "\"}");
+    }
+
+    /**
+     * LOOL flags its periodic saves with X-LOOL-WOPI-IsAutosave. The save made when the document is closed is always
+     * written straight away, as is any save from a LOOL that doesn't send the header.
+     */
+    private boolean isAutosave(WebScriptRequest req) {
+        return "true".equalsIgnoreCase(req.getHeader("X-LOOL-WOPI-IsAutosave"))
+                && !"true".equalsIgnoreCase(req.getHeader("X-LOOL-WOPI-IsExitSave"));
+    }
+
+    /**
+     * Writes the spooled content to the file of the token, as the user of the token.
+     *
+     * @param tokenInfo
+     * @param spooledContent
+     * @param digest the SHA-256 digest of the spooled content, recorded on the node
+     * @return the modification date of the file after the write
+     */
+    private Date writeContent(final WOPIAccessTokenInfo tokenInfo, final File spooledContent, final String digest) {
+        final int[] attempts = new int[1];
+        //https://community.alfresco.com/message/809749-re-why-is-the-modifier-of-a-content-a-random-user-from-the-list-of-logged-in-users?commentID=809749&et=watches.email.thread#comment-809749
+        return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Date>() {
+            @Override
+            public Date execute() throws Throwable {
+                if (attempts[0]++ > 0) {
+                    wopiMetrics.recordTransactionRetry();
+                }
+                //Verifying that the user actually exists
+                PersonInfo person = wopiTokenService.getUserInfoOfToken(tokenInfo);
+                final NodeRef nodeRef = wopiTokenService.getFileNodeRef(tokenInfo);
+                if (StringUtils.isBlank(person.getUserName()) && person.getUserName() != tokenInfo.getUserName())
+                    throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR,
+                            "The user no longer appears to exist.");
+                try {
+                    AuthenticationUtil.setFullyAuthenticatedUser(tokenInfo.getUserName());
+                    lockService.suspendLocks();
+                    // The writer starts out with the mimetype and encoding of the current content; the
+                    // post save processor re-checks them after commit
+                    ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
+                    if (writer.getMimetype() == null) {
+                        writer.setMimetype(mimetypeService.guessMimetype(
+                                (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)));
                     }
-                }, false, true);
+                    writer.putContent(spooledContent);
+                    Map<QName, Serializable> digestProperties = new HashMap<>(2);
+                    digestProperties.put(WOPIModel.PROP_DIGEST, digest);
+                    digestProperties.put(WOPIModel.PROP_DIGEST_CONTENT_URL, writer.getContentUrl());
+                    nodeService.addAspect(nodeRef, WOPIModel.ASPECT_CONTENT_DIGEST, digestProperties);
+                    postSaveProcessor.scheduleAfterCommit(nodeRef, tokenInfo);
+                    return (Date) nodeService.getProperty(nodeRef, ContentModel.PROP_MODIFIED);
+                } finally {
+                    lockService.enableLocks();
+                    AuthenticationUtil.clearCurrentSecurityContext();
+                }
             }
+        }, false, true);
+    }
 
-            logger.info("Modifier for the above nodeRef [" + nodeRef.toString() + "] is: "
-                    + nodeService.getProperty(nodeRef, ContentModel.PROP_MODIFIER));
+    /**
+     * Copies the request body to a temporary file, enforcing the size limit and the limit on concurrent uploads.
+     *
+     * @param req
+     * @param messageDigest updated with the body as it is copied
+     * @return the spooled body, to be deleted by the caller
+     * @throws IOException
+     */
+    private File spool(WebScriptRequest req, MessageDigest messageDigest) throws IOException {
+        String contentLength = req.getHeader("Content-Length");
+        if (contentLength != null && maxUploadSizeBytes > 0) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > maxUploadSizeBytes) {
+                    throw tooLarge();
+                }
+            } catch (NumberFormatException nfe) {
+                // Let the copy below enforce the limit
+            }
+        }
+
+        try {
+            if (!uploadPermits.tryAcquire(uploadPermitWaitMs, TimeUnit.MILLISECONDS)) {
+                throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE,
+                        "Too many concurrent uploads, please retry later");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, "Interrupted waiting to upload");
+        }
+
+        File spooledContent = null;
+        boolean spooled = false;
+        try {
+            spooledContent = TempFileProvider.createTempFile("lool-putfile-", ".bin");
+            try (InputStream inputStream = new DigestInputStream(req.getContent().getInputStream(), messageDigest);
+                 OutputStream outputStream = new FileOutputStream(spooledContent)) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                long total = 0;
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    total += read;
+                    if (maxUploadSizeBytes > 0 && total > maxUploadSizeBytes) {
+                        throw tooLarge();
+                    }
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+            spooled = true;
+            return spooledContent;
+        } finally {
+            uploadPermits.release();
+            if (!spooled && spooledContent != null) {
+                delete(spooledContent);
+            }
+        }
+    }
 
-        } catch (ContentIOException | NullPointerException | WebScriptException we) {
-            we.printStackTrace();
-            if (we.getClass() == ContentIOException.class)
-                throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Error writing to file");
-            else if (we.getClass() == WebScriptException.class)
-                throw new WebScriptException(Status.STATUS_UNAUTHORIZED, "Access token invalid or expired");
-            else
-                throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "\nUnidentified problem writing to file" +
-                        "please consult system administrator for help on this issue.\n ");
+    private static void delete(File file) {
+        if (!file.delete()) {
+            file.deleteOnExit();
         }
     }
 
+    private WebScriptException tooLarge() {
+        return new WebScriptException(Status.STATUS_REQUEST_ENTITY_TOO_LARGE,
+                "The file exceeds the maximum upload size of " + maxUploadSizeBytes + " bytes");
+    }
+
     public void setWopiTokenService(WOPITokenService wopiTokenService) {
         this.wopiTokenService = wopiTokenService;
     }
 
+    public void setWopiLockService(WOPILockService wopiLockService) {
+        this.wopiLockService = wopiLockService;
+    }
+
+    public void setLockService(LockService lockService) {
+        this.lockService = lockService;
+    }
+
     public void setNodeService(NodeService nodeService) {
         this.nodeService = nodeService;
     }
@@ -106,7 +425,45 @@ public class LOOLPutFileWebScript extends AbstractWebScript {
         this.contentService = contentService;
     }
 
+    public void setMimetypeService(MimetypeService mimetypeService) {
+        this.mimetypeService = mimetypeService;
+    }
+
+    public void setPostSaveProcessor(WOPIPostSaveProcessor postSaveProcessor) {
+        this.postSaveProcessor = postSaveProcessor;
+    }
+
+    public void setSaveCoalescer(WOPISaveCoalescer saveCoalescer) {
+        this.saveCoalescer = saveCoalescer;
+    }
+
     public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
         this.retryingTransactionHelper = retryingTransactionHelper;
     }
-}
\ No newline at end of file
+
+    /**
+     * Whether to refuse saves whose X-LOOL-WOPI-Timestamp shows the document was changed outside of LOOL meanwhile.
+     */
+    public void setCheckTimestamp(boolean checkTimestamp) {
+        this.checkTimestamp = checkTimestamp;
+    }
+
+    /**
+     * 0 or less means no limit.
+     */
+    public void setMaxUploadSizeBytes(long maxUploadSizeBytes) {
+        this.maxUploadSizeBytes = maxUploadSizeBytes;
+    }
+
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.uploadPermits = new Semaphore(maxConcurrentUploads);
+    }
+
+    public void setUploadPermitWaitMs(long uploadPermitWaitMs) {
+        this.uploadPermitWaitMs = uploadPermitWaitMs;
+    }
+
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
+    }
+}
@@ -0,0 +1,217 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.repo.cache.SimpleCache;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Access token store shared by all the nodes of an Alfresco cluster, so the WOPI callbacks from the LOOL server can
+ * land on any repository node.
+ *
+ * Tokens live in two clustered caches created by Alfresco's cacheFactory (see the cache.wopiAccessToken* properties):
+ * one keyed by access token, and one mapping (fileId, userName) to the access token so tokens can be renewed.
+ * Expiry and capacity of the shared caches are handled by the caches themselves.
+ *
+ * A node local near-cache sits in front of the token cache so repeated WOPI calls for an open document don't go to
+ * the cluster. A near-cache entry is used for at most nearCacheTtlSeconds, and only as long as the token it holds is
+ * valid; a token renewed on another node is therefore picked up as soon as the local copy expires, while a token
+ * removed on another node may still be accepted here for up to nearCacheTtlSeconds.
+ *
+ * Renewal is serialised per (fileId, userName) with striped locks on this node. Two nodes renewing the same token at
+ * the same time may both mint a new token; both are valid and the later one wins the renewal index.
+ *
+ * Counting the keys of a clustered cache means asking every member, so size() reports a count taken at most once
+ * every sizeRefreshSeconds.
+ */
+public class ClusteredWOPIAccessTokenStore implements WOPIAccessTokenStore, WOPIAccessTokenStoreMetrics {
+
+    private static final int LOCK_STRIPES = 64;
+    private static final long DEFAULT_NEAR_CACHE_TTL_SECONDS = 30;
+    private static final int DEFAULT_NEAR_CACHE_MAX_ITEMS = 10000;
+    private static final long DEFAULT_SIZE_REFRESH_SECONDS = 60;
+
+    private SimpleCache<String, WOPIAccessTokenInfo> tokenCache;
+    private SimpleCache<String, String> fileUserCache;
+    private int maxTokens;
+    private long sizeRefreshMs = DEFAULT_SIZE_REFRESH_SECONDS * 1000;
+
+    private final WOPILocalCache<String, WOPIAccessTokenInfo> nearCache =
+            new WOPILocalCache<>(DEFAULT_NEAR_CACHE_TTL_SECONDS, DEFAULT_NEAR_CACHE_MAX_ITEMS);
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final AtomicLong expiredEvictionCount = new AtomicLong();
+    private long evictionsAtLastRead;
+    private long lastReadTime = System.currentTimeMillis();
+    // Guarded by this
+    private int cachedSize;
+    private long sizeStaleAt;
+
+    public ClusteredWOPIAccessTokenStore() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    //<editor-fold desc="Bean setters">
+    public void setTokenCache(SimpleCache<String, WOPIAccessTokenInfo> tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    public void setFileUserCache(SimpleCache<String, String> fileUserCache) {
+        this.fileUserCache = fileUserCache;
+    }
+
+    /**
+     * Only used for reporting; the limit itself is enforced by the token cache's maxItems.
+     */
+    public void setMaxTokens(int maxTokens) {
+        this.maxTokens = maxTokens;
+    }
+
+    public void setNearCacheTtlSeconds(long nearCacheTtlSeconds) {
+        nearCache.setTtlSeconds(nearCacheTtlSeconds);
+    }
+
+    public void setNearCacheMaxItems(int nearCacheMaxItems) {
+        nearCache.setMaxItems(nearCacheMaxItems);
+    }
+
+    /**
+     * 0 counts the keys of the shared cache on every call to size().
+     */
+    public void setSizeRefreshSeconds(long sizeRefreshSeconds) {
+        this.sizeRefreshMs = sizeRefreshSeconds * 1000;
+    }
+    //</editor-fold>
+
+    @Override
+    public WOPIAccessTokenInfo renewOrCreate(String fileId, String userName, Date now, Date newExpiresAt,
+                                             Supplier<String> tokenGenerator) {
+        String fileUserKey = fileUserKey(fileId, userName);
+        synchronized (locks[(fileUserKey.hashCode() & 0x7fffffff) % LOCK_STRIPES]) {
+            String accessToken = fileUserCache.get(fileUserKey);
+            WOPIAccessTokenInfo existing = accessToken == null ? null : tokenCache.get(accessToken);
+            WOPIAccessTokenInfo tokenInfo;
+            if (existing != null && existing.isValid()) {
+                // Renew token for a new time-to-live period. Put a copy so every node sees the new expiry date.
+                tokenInfo = new WOPIAccessTokenInfo(existing.getAccessToken(), existing.getIssuedAt(), newExpiresAt,
+                        fileId, userName);
+            } else {
+                if (existing != null) {
+                    // Expired or not valid -- replace it.
+                    removeShared(existing.getAccessToken());
+                }
+                tokenInfo = new WOPIAccessTokenInfo(tokenGenerator.get(), now, newExpiresAt, fileId, userName);
+                fileUserCache.put(fileUserKey, tokenInfo.getAccessToken());
+            }
+            tokenCache.put(tokenInfo.getAccessToken(), tokenInfo);
+            nearCache.put(tokenInfo.getAccessToken(), tokenInfo);
+            return tokenInfo;
+        }
+    }
+
+    @Override
+    public WOPIAccessTokenInfo get(String accessToken) {
+        if (accessToken == null) {
+            return null;
+        }
+        WOPIAccessTokenInfo nearTokenInfo = nearCache.get(accessToken);
+        if (nearTokenInfo != null && nearTokenInfo.isValid()) {
+            return nearTokenInfo;
+        }
+        WOPIAccessTokenInfo tokenInfo = tokenCache.get(accessToken);
+        if (tokenInfo == null) {
+            nearCache.remove(accessToken);
+            return null;
+        }
+        if (tokenInfo.getExpiresAt().getTime() <= System.currentTimeMillis()) {
+            // Don't wait for the cache to time it out
+            remove(tokenInfo);
+            expiredEvictionCount.incrementAndGet();
+            return tokenInfo;
+        }
+        nearCache.put(accessToken, tokenInfo);
+        return tokenInfo;
+    }
+
+    @Override
+    public boolean remove(WOPIAccessTokenInfo tokenInfo) {
+        nearCache.remove(tokenInfo.getAccessToken());
+        String fileUserKey = fileUserKey(tokenInfo.getFileId(), tokenInfo.getUserName());
+        if (tokenInfo.getAccessToken().equals(fileUserCache.get(fileUserKey))) {
+            fileUserCache.remove(fileUserKey);
+        }
+        return removeShared(tokenInfo.getAccessToken());
+    }
+
+    /**
+     * Returns the number of tokens in the shared cache as counted at most sizeRefreshSeconds ago.
+     */
+    @Override
+    public synchronized int size() {
+        long now = System.currentTimeMillis();
+        if (now >= sizeStaleAt) {
+            cachedSize = tokenCache.getKeys().size();
+            sizeStaleAt = now + sizeRefreshMs;
+        }
+        return cachedSize;
+    }
+
+    private boolean removeShared(String accessToken) {
+        boolean held = tokenCache.contains(accessToken);
+        tokenCache.remove(accessToken);
+        nearCache.remove(accessToken);
+        return held;
+    }
+
+    //<editor-fold desc="Metrics">
+    /**
+     * See size(); the count may be up to sizeRefreshSeconds old.
+     */
+    @Override
+    public int getLiveTokenCount() {
+        return size();
+    }
+
+    @Override
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    @Override
+    public long getExpiredEvictionCount() {
+        return expiredEvictionCount.get();
+    }
+
+    /**
+     * Overflow of the shared caches is handled by the caches themselves, so this counts near-cache evictions only.
+     */
+    @Override
+    public long getOverflowEvictionCount() {
+        return nearCache.getOverflowEvictionCount();
+    }
+
+    /**
+     * There is no sweeper here, so the rate is measured between successive reads of this metric.
+     */
+    @Override
+    public synchronized double getEvictionsPerMinute() {
+        long now = System.currentTimeMillis();
+        long evictions = expiredEvictionCount.get() + nearCache.getOverflowEvictionCount();
+        long elapsed = now - lastReadTime;
+        double rate = elapsed > 0 ? (evictions - evictionsAtLastRead) * 60000d / elapsed : 0d;
+        evictionsAtLastRead = evictions;
+        lastReadTime = now;
+        return rate;
+    }
+    //</editor-fold>
+
+    /**
+     * File ids are node uuids and never contain a '/', so the key is unambiguous whatever the user name is.
+     */
+    private static String fileUserKey(String fileId, String userName) {
+        return fileId + '/' + userName;
+    }
+}
@@ -0,0 +1,278 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Thread safe, node local store for the WOPI access tokens handed out by the LOOLService.
+ * Only suitable for a single repository node, or a cluster where the LOOL server is pinned to one node.
+ *
+ * Tokens are indexed twice:
+ * <ul>
+ *     <li>by the access token itself, so that validating a WOPI request is a single hash lookup.</li>
+ *     <li>by the (fileId, userName) pair, so that a user asking for a token for the same file again gets the
+ *     existing token renewed rather than a new one.</li>
+ * </ul>
+ * Both indexes are ConcurrentHashMaps. The (fileId, userName) index is updated with an atomic compute so concurrent
+ * token requests for the same user/file combination can never create two tokens.
+ *
+ * Expired tokens are evicted by a background sweeper working off a queue ordered by expiry date, so a sweep only
+ * touches the tokens that are actually due. Renewed tokens are not re-queued on renewal; when their stale queue entry
+ * comes up the sweeper notices the later expiry date and re-queues them instead.
+ * The store holds at most maxTokens tokens. When it is full the overflow policy decides whether the token closest to
+ * expiring is evicted or the new token is refused.
+ */
+public class InMemoryWOPIAccessTokenStore implements WOPIAccessTokenStore, WOPIAccessTokenStoreMetrics {
+    private static final Log logger = LogFactory.getLog(InMemoryWOPIAccessTokenStore.class);
+
+    private static final int DEFAULT_MAX_TOKENS = 100000;
+    private static final long DEFAULT_SWEEP_INTERVAL_SECONDS = 60;
+
+    /**
+     * What to do when a new token is requested while the store already holds maxTokens tokens.
+     */
+    public enum OverflowPolicy {
+        /** Evict the token closest to expiring to make room for the new one. */
+        EVICT_EARLIEST_EXPIRY,
+        /** Refuse to issue the new token. */
+        REJECT
+    }
+
+    private final ConcurrentMap<String, WOPIAccessTokenInfo> tokensByAccessToken = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, WOPIAccessTokenInfo> tokensByFileUser = new ConcurrentHashMap<>();
+
+    private final PriorityBlockingQueue<ExpiryEntry> expiryQueue = new PriorityBlockingQueue<>();
+
+    private int maxTokens = DEFAULT_MAX_TOKENS;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.EVICT_EARLIEST_EXPIRY;
+    private long sweepIntervalSeconds = DEFAULT_SWEEP_INTERVAL_SECONDS;
+
+    private ScheduledExecutorService sweeper;
+
+    private final AtomicLong expiredEvictionCount = new AtomicLong();
+    private final AtomicLong overflowEvictionCount = new AtomicLong();
+    private long evictionsAtLastSweep;
+    private long lastSweepTime = System.currentTimeMillis();
+    private volatile double evictionsPerMinute;
+
+    public void setMaxTokens(int maxTokens) {
+        this.maxTokens = maxTokens;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setSweepIntervalSeconds(long sweepIntervalSeconds) {
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    public void init() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WOPIAccessTokenSweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweepSafely, sweepIntervalSeconds, sweepIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    public void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    @Override
+    public WOPIAccessTokenInfo renewOrCreate(final String fileId, final String userName, final Date now,
+                                             final Date newExpiresAt, final Supplier<String> tokenGenerator) {
+        final WOPIAccessTokenInfo[] replaced = new WOPIAccessTokenInfo[1];
+        final boolean[] created = new boolean[1];
+        WOPIAccessTokenInfo tokenInfo = tokensByFileUser.compute(fileUserKey(fileId, userName),
+                (key, existing) -> {
+                    if (existing != null && existing.isValid()) {
+                        // Renew token for a new time-to-live period.
+                        existing.setExpiresAt(newExpiresAt);
+                        return existing;
+                    }
+                    if (existing == null && overflowPolicy == OverflowPolicy.REJECT
+                            && tokensByAccessToken.size() >= maxTokens) {
+                        throw new AlfrescoRuntimeException("The maximum number of WOPI access tokens (" + maxTokens
+                                + ") has been reached.");
+                    }
+                    // Expired or not valid -- replace it.
+                    replaced[0] = existing;
+                    created[0] = true;
+                    WOPIAccessTokenInfo newTokenInfo = new WOPIAccessTokenInfo(tokenGenerator.get(), now,
+                            newExpiresAt, fileId, userName);
+                    tokensByAccessToken.put(newTokenInfo.getAccessToken(), newTokenInfo);
+                    return newTokenInfo;
+                });
+        if (replaced[0] != null) {
+            tokensByAccessToken.remove(replaced[0].getAccessToken(), replaced[0]);
+        }
+        if (created[0]) {
+            expiryQueue.offer(new ExpiryEntry(tokenInfo));
+            evictOverflow();
+        }
+        return tokenInfo;
+    }
+
+    @Override
+    public WOPIAccessTokenInfo get(String accessToken) {
+        if (accessToken == null) {
+            return null;
+        }
+        return tokensByAccessToken.get(accessToken);
+    }
+
+    /**
+     * Its expiry queue entry is left behind and discarded by the sweeper when it comes due.
+     */
+    @Override
+    public boolean remove(WOPIAccessTokenInfo tokenInfo) {
+        tokensByFileUser.remove(fileUserKey(tokenInfo.getFileId(), tokenInfo.getUserName()), tokenInfo);
+        return tokensByAccessToken.remove(tokenInfo.getAccessToken(), tokenInfo);
+    }
+
+    @Override
+    public int size() {
+        return tokensByAccessToken.size();
+    }
+
+    /**
+     * Evicts every token whose expiry date has passed. Only the due head of the expiry queue is visited.
+     */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        ExpiryEntry entry;
+        while ((entry = expiryQueue.peek()) != null && entry.expiresAt <= now) {
+            entry = expiryQueue.poll();
+            if (entry == null) {
+                break;
+            }
+            if (entry.expiresAt > now) {
+                // Lost a race with an overflow eviction and got an entry that isn't due yet
+                expiryQueue.offer(entry);
+                break;
+            }
+            long currentExpiresAt = entry.tokenInfo.getExpiresAt().getTime();
+            if (currentExpiresAt > now) {
+                // Renewed since it was queued
+                if (tokensByAccessToken.get(entry.tokenInfo.getAccessToken()) == entry.tokenInfo) {
+                    expiryQueue.offer(new ExpiryEntry(entry.tokenInfo));
+                }
+            } else if (remove(entry.tokenInfo)) {
+                expiredEvictionCount.incrementAndGet();
+            }
+        }
+        updateEvictionRate(now);
+    }
+
+    private void sweepSafely() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the scheduled sweep
+            logger.error("Failed to sweep expired WOPI access tokens", e);
+        }
+    }
+
+    private void evictOverflow() {
+        if (overflowPolicy != OverflowPolicy.EVICT_EARLIEST_EXPIRY) {
+            return;
+        }
+        while (tokensByAccessToken.size() > maxTokens) {
+            ExpiryEntry entry = expiryQueue.poll();
+            if (entry == null) {
+                return;
+            }
+            if (tokensByAccessToken.get(entry.tokenInfo.getAccessToken()) != entry.tokenInfo) {
+                // Already removed
+                continue;
+            }
+            if (entry.tokenInfo.getExpiresAt().getTime() > entry.expiresAt) {
+                // Renewed since it was queued, so it isn't necessarily the earliest to expire any more
+                expiryQueue.offer(new ExpiryEntry(entry.tokenInfo));
+                continue;
+            }
+            if (remove(entry.tokenInfo)) {
+                overflowEvictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    private synchronized void updateEvictionRate(long now) {
+        long evictions = expiredEvictionCount.get() + overflowEvictionCount.get();
+        long elapsed = now - lastSweepTime;
+        if (elapsed > 0) {
+            evictionsPerMinute = (evictions - evictionsAtLastSweep) * 60000d / elapsed;
+        }
+        evictionsAtLastSweep = evictions;
+        lastSweepTime = now;
+    }
+
+    //<editor-fold desc="Metrics">
+    @Override
+    public int getLiveTokenCount() {
+        return size();
+    }
+
+    @Override
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    @Override
+    public long getExpiredEvictionCount() {
+        return expiredEvictionCount.get();
+    }
+
+    @Override
+    public long getOverflowEvictionCount() {
+        return overflowEvictionCount.get();
+    }
+
+    @Override
+    public double getEvictionsPerMinute() {
+        return evictionsPerMinute;
+    }
+    //</editor-fold>
+
+    /**
+     * File ids are node uuids and never contain a '/', so the key is unambiguous whatever the user name is.
+     */
+    private static String fileUserKey(String fileId, String userName) {
+        return fileId + '/' + userName;
+    }
+
+    /**
+     * A token together with the expiry date it had when it was queued.
+     */
+    private static final class ExpiryEntry implements Comparable<ExpiryEntry> {
+        private final WOPIAccessTokenInfo tokenInfo;
+        private final long expiresAt;
+
+        private ExpiryEntry(WOPIAccessTokenInfo tokenInfo) {
+            this.tokenInfo = tokenInfo;
+            this.expiresAt = tokenInfo.getExpiresAt().getTime();
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry other) {
+            return Long.compare(expiresAt, other.expiresAt);
+        }
+    }
+}
@@ -50,6 +50,23 @@ public interface LOOLService {
      */
     NodeRef checkAccessToken(WebScriptRequest req) throws WebScriptException;
 
+    /**
+     * Check the access token given in the request like checkAccessToken, and return what it gives access to.
+     *
+     * @param req
+     * @throws WebScriptException
+     * @return
+     */
+    WOPIFileAccess checkFileAccess(WebScriptRequest req) throws WebScriptException;
+
+    /**
+     * Resolve what the current user may do with the given file, without issuing a token or using the cache.
+     *
+     * @param nodeRef
+     * @return
+     */
+    WOPIFileAccess resolveFileAccess(NodeRef nodeRef);
+
     /**
      * Returns the WOPI src URL for a given nodeRef and action.
      *
@@ -89,4 +106,10 @@ public interface LOOLService {
      * @return
      */
 	URL getAlfExternalHost();
+
+    /**
+     * Returns the loader serving discovery.xml, e.g. to report on its state.
+     * @return
+     */
+    WOPILoader getWopiLoader();
 }
@@ -7,34 +7,22 @@ import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import java.io.ByteArrayInputStream;
+
 import java.io.IOException;
-import java.io.InputStream;
 import java.math.BigInteger;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.SecureRandom;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
-public class LOOLServiceImpl implements LOOLService {
+public class LOOLServiceImpl extends AbstractLifecycleBean implements LOOLService {
     private static final Log logger = LogFactory.getLog(LOOLServiceImpl.class);
 
     private static final long ONE_HOUR_MS = 1000 * 60 * 60;
@@ -49,25 +37,23 @@ public class LOOLServiceImpl implements LOOLService {
     private URL alfExternalHost;
     private URL wopiDiscoveryURL;
     private WOPILoader wopiLoader;
+    private long discoveryRefreshIntervalSeconds;
+    private long discoveryRetryMinSeconds;
+    private int discoveryConnectTimeoutMs;
+    private int discoveryReadTimeoutMs;
+    private String bundledDiscoveryUrlSrc;
     private NodeService nodeService;
     private SysAdminParams sysAdminParams;
     private WOPITokenService wopiTokenService;
+    private WOPIFileAccessCache fileAccessCache;
 
     private SecureRandom random = new SecureRandom();
 
     /**
-     * This holds a map of the the "token info(s)" mapped to a file.
+     * Holds the "token info(s)" handed out, indexed both by access token and by file/user.
      * Each token info is mapped to a user, so in essence a user may only have one token info per file.
-     * <FileId, <userName, tokenInfo> >
-     * <p>
-     * {
-     * fileId: { <== The id of the nodeRef that refers to the file
-     * userName: WOPIAccessTokenInfo
-     * }
-     * }
      */
-    private Map<String, Map<String, WOPIAccessTokenInfo>> fileIdAccessTokenMap
-            = new HashMap<>();
+    private WOPIAccessTokenStore accessTokenStore;
 
     public void setNodeService(NodeService nodeService) {
         this.nodeService = nodeService;
@@ -81,6 +67,26 @@ public class LOOLServiceImpl implements LOOLService {
         this.wopiDiscoveryURL = wopiDiscoveryURL;
     }
 
+    public void setDiscoveryRefreshIntervalSeconds(long discoveryRefreshIntervalSeconds) {
+        this.discoveryRefreshIntervalSeconds = discoveryRefreshIntervalSeconds;
+    }
+
+    public void setDiscoveryRetryMinSeconds(long discoveryRetryMinSeconds) {
+        this.discoveryRetryMinSeconds = discoveryRetryMinSeconds;
+    }
+
+    public void setDiscoveryConnectTimeoutMs(int discoveryConnectTimeoutMs) {
+        this.discoveryConnectTimeoutMs = discoveryConnectTimeoutMs;
+    }
+
+    public void setDiscoveryReadTimeoutMs(int discoveryReadTimeoutMs) {
+        this.discoveryReadTimeoutMs = discoveryReadTimeoutMs;
+    }
+
+    public void setBundledDiscoveryUrlSrc(String bundledDiscoveryUrlSrc) {
+        this.bundledDiscoveryUrlSrc = bundledDiscoveryUrlSrc;
+    }
+
     public void setAlfExternalHost(URL alfExternalHost) {
         this.alfExternalHost = alfExternalHost;
     }
@@ -89,9 +95,18 @@ public class LOOLServiceImpl implements LOOLService {
         this.wopiTokenService = wopiTokenService;
     }
 
+    public void setFileAccessCache(WOPIFileAccessCache fileAccessCache) {
+        this.fileAccessCache = fileAccessCache;
+    }
+
+    public void setAccessTokenStore(WOPIAccessTokenStore accessTokenStore) {
+        this.accessTokenStore = accessTokenStore;
+    }
+
     /**
      * Generate and store an access token only valid for the current user/file id combination.
      * If access token exists for the user/file id combination, then extend its expiration date and return it.
+     * What the token gives access to is resolved straight away, so the WOPI calls made with it find it cached.
      *
      * @param fileId
      * @return
@@ -101,27 +116,9 @@ public class LOOLServiceImpl implements LOOLService {
         String userName = AuthenticationUtil.getRunAsUser();
         Date now = new Date();
         Date newExpiresAt = new Date(now.getTime() + TOKEN_TTL_MS);
-        Map<String, WOPIAccessTokenInfo> tokenInfoMap = fileIdAccessTokenMap.get(fileId);
-        WOPIAccessTokenInfo tokenInfo = null;
-        if (tokenInfoMap != null) {
-            tokenInfo = tokenInfoMap.get(userName);
-            if (tokenInfo != null) {
-                if (tokenInfo.isValid() && tokenInfo.getFileId().equals(fileId) &&
-                        tokenInfo.getUserName().equals(userName)) {
-                    // Renew token for a new time-to-live period.
-                    tokenInfo.setExpiresAt(newExpiresAt);
-                } else {
-                    // Expired or not valid -- remove it.
-                    tokenInfoMap.remove(userName);
-                }
-            }
-        }
-        if (tokenInfo == null) {
-            tokenInfo = new WOPIAccessTokenInfo(generateAccessToken(), now, newExpiresAt, fileId, userName);
-            if (fileIdAccessTokenMap.get(fileId) == null)
-                fileIdAccessTokenMap.put(fileId, new HashMap<String, WOPIAccessTokenInfo>());
-            fileIdAccessTokenMap.get(fileId).put(userName, tokenInfo);
-        }
+        WOPIAccessTokenInfo tokenInfo = accessTokenStore.renewOrCreate(fileId, userName, now, newExpiresAt,
+                this::generateAccessToken);
+        fileAccessCache.get(tokenInfo);
         return tokenInfo;
     }
 
@@ -143,28 +140,12 @@ public class LOOLServiceImpl implements LOOLService {
      */
     @Override
     public WOPIAccessTokenInfo getAccessToken(String accessToken, String fileId) {
-        Map<String, WOPIAccessTokenInfo> tokenInfoMap = fileIdAccessTokenMap.get(fileId);
-        if (tokenInfoMap != null) {
-            WOPIAccessTokenInfo tokenInfo = null;
-            // Find the token in the map values. Note that we don't know the
-            // username for the token at this point, so we can't just do a
-            // simple key lookup.
-            for (WOPIAccessTokenInfo t : tokenInfoMap.values()) {
-                if (t.getAccessToken().equals(accessToken)) {
-                    tokenInfo = t;
-                    break;
-                }
-            }
-            if (tokenInfo != null) {
-                // Found the access token for the given file id.
-                return tokenInfo;
-            } else {
-                // Tokens exist for this file id, but given access token is
-                // not one of them.
-                return null;
-            }
+        WOPIAccessTokenInfo tokenInfo = accessTokenStore.get(accessToken);
+        if (tokenInfo != null && tokenInfo.getFileId().equals(fileId)) {
+            // Found the access token for the given file id.
+            return tokenInfo;
         } else {
-            // No tokens found for this file id.
+            // No such token, or the token was issued for another file.
             return null;
         }
     }
@@ -180,6 +161,20 @@ public class LOOLServiceImpl implements LOOLService {
      */
     @Override
     public NodeRef checkAccessToken(WebScriptRequest req) throws WebScriptException {
+        return checkFileAccess(req).getNodeRef();
+    }
+
+    /**
+     * Check the access token given in the request, and return what it gives access to from the WOPIFileAccessCache.
+     * Fails with a 404 if the file no longer exists, and with a 401 if the user of the token can no longer read it.
+     * Additionally, set the runAs user to the user corresponding to the token.
+     *
+     * @param req
+     * @throws WebScriptException
+     * @return
+     */
+    @Override
+    public WOPIFileAccess checkFileAccess(WebScriptRequest req) throws WebScriptException {
         String fileId = req.getServiceMatch().getTemplateVars().get("fileId");
         if (fileId == null) {
             throw new WebScriptException("No 'fileId' parameter supplied");
@@ -192,7 +187,25 @@ public class LOOLServiceImpl implements LOOLService {
         }
 
         AuthenticationUtil.setRunAsUser(tokenInfo.getUserName());
-        return getNodeRefForFileId(fileId);
+        WOPIFileAccess fileAccess = fileAccessCache.get(tokenInfo);
+        if (!fileAccess.exists()) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "File not found");
+        }
+        if (!fileAccess.canRead()) {
+            throw new WebScriptException(Status.STATUS_UNAUTHORIZED, "Access token invalid or expired");
+        }
+        return fileAccess;
+    }
+
+    /**
+     * Resolve what the current user may do with the given file, for deciding whether to issue a token for it at all.
+     *
+     * @param nodeRef
+     * @return
+     */
+    @Override
+    public WOPIFileAccess resolveFileAccess(NodeRef nodeRef) {
+        return fileAccessCache.resolve(nodeRef);
     }
 
     /**
@@ -247,6 +260,11 @@ public class LOOLServiceImpl implements LOOLService {
 		return alfExternalHost;
 	}
 
+    @Override
+    public WOPILoader getWopiLoader() {
+        return wopiLoader;
+    }
+
     public void setSysAdminParams(SysAdminParams sysAdminParams) {
         this.sysAdminParams = sysAdminParams;
     }
@@ -280,82 +298,27 @@ public class LOOLServiceImpl implements LOOLService {
         }
 
         wopiLoader = new WOPILoader(wopiDiscoveryURL);
+        wopiLoader.setRefreshIntervalSeconds(discoveryRefreshIntervalSeconds);
+        wopiLoader.setRetryMinSeconds(discoveryRetryMinSeconds);
+        wopiLoader.setConnectTimeoutMs(discoveryConnectTimeoutMs);
+        wopiLoader.setReadTimeoutMs(discoveryReadTimeoutMs);
+        wopiLoader.setBundledUrlSrc(bundledDiscoveryUrlSrc);
+        // Serve the bundled discovery.xml until the LOOL server has been reached
+        wopiLoader.loadBundledDiscovery();
     }
 
-    public class WOPILoader {
-        private Document discoveryDoc;
-        private URL wopiDiscoveryURL;
-
-        public WOPILoader(URL wopiDiscoveryURL) {
-            this.wopiDiscoveryURL = wopiDiscoveryURL;
-        }
-
-        /**
-         * Return the src url for a given mimetype.
-         *
-         * @param mimeType
-         * @return
-         */
-        public String getSrcURL(String mimeType, String action) throws IOException {
-            // Attempt to reload discovery.xml from host if it isn't already loaded.
-            if (discoveryDoc == null) {
-                try {
-                    loadDiscoveryXML();
-                } catch (IOException e) {
-                    logger.error("Failed to get discovery.xml file from server ("+ wopiDiscoveryURL.toString()+")", e);
-                    throw e;
-                }
-            }
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xPath = xPathFactory.newXPath();
-            String xPathExpr =
-                    ("/wopi-discovery/net-zone/app[@name='${mimeType}']/action[@name='${action}']/@urlsrc")
-                            .replace("${mimeType}", mimeType)
-                            .replace("${action}", action);
-            try {
-                return xPath.evaluate(xPathExpr, discoveryDoc);
-            } catch (XPathExpressionException e) {
-                e.printStackTrace();
-                return null;
-            }
-        }
-
-        private void loadDiscoveryXML() throws IOException {
-            InputStream inputStream = fetchDiscoveryXML();
-            discoveryDoc = parse(inputStream);
-        }
-
-        /**
-         * Parse a discovery.xml file input stream.
-         *
-         * @param discoveryInputStream
-         * @return
-         */
-        private Document parse(InputStream discoveryInputStream) {
-            DocumentBuilderFactory builderFactory =
-                    DocumentBuilderFactory.newInstance();
-            try {
-                DocumentBuilder builder = builderFactory.newDocumentBuilder();
-                return builder.parse(discoveryInputStream);
-            } catch (ParserConfigurationException | IOException | SAXException e) {
-                e.printStackTrace();
-            }
-            return null;
-        }
-
-        private InputStream fetchDiscoveryXML() throws IOException {
-            HttpURLConnection connection = (HttpURLConnection) this.wopiDiscoveryURL.openConnection();
-            logger.debug("\n--- debug ---\nHttp connection for discovery xml returned with a ["
-                    + connection.getResponseCode() + "] response code.\n");
-            try {
-                byte[] conn = IOUtils.toByteArray(connection.getInputStream());
-                return new ByteArrayInputStream(conn);
-            } catch (IOException e) {
-                logger.warn("===== Error ======\nThere was an error fetching discovery.xml:\n" + e.getMessage());
-                e.printStackTrace();
-                return null;
-            }
+    /**
+     * Warms up the discovery from the LOOL server in the background as soon as the repository has started.
+     *
+     * @param event
+     */
+    @Override
+    protected void onBootstrap(ApplicationEvent event) {
+        wopiLoader.start();
+    }
 
-        }
+    @Override
+    protected void onShutdown(ApplicationEvent event) {
+        wopiLoader.stop();
     }
 }
@@ -49,4 +49,14 @@ public class PersonInfo {
     public String getLastName() {
         return lastName;
     }
+
+    /**
+     * Returns the first and last name, or the user name if the person has neither.
+     *
+     * @return
+     */
+    public String getFriendlyName() {
+        String fullName = ((firstName != null ? firstName : "") + " " + (lastName != null ? lastName : "")).trim();
+        return fullName.isEmpty() ? userName : fullName;
+    }
 }
\ No newline at end of file
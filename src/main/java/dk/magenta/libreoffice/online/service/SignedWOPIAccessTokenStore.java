@@ -0,0 +1,313 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Stateless access token "store". Nothing is stored: the fileId, userName, issuedAt and expiresAt are encoded in the
+ * token itself and signed with an HMAC key, so any node holding the key can verify a token without a lookup, and
+ * tokens survive node restarts.
+ *
+ * Token layout (all parts base64url encoded without padding, except the key id):
+ * <pre>
+ *     keyId.payload.signature
+ * </pre>
+ * where the payload is fileId, userName, issuedAt and expiresAt separated by newlines, and the signature is
+ * HmacSHA256 over "keyId.payload".
+ *
+ * Keys are configured with lool.wopi.token.signing.keys as a comma separated list of keyId:base64Secret pairs, and new
+ * tokens are signed with the key named by lool.wopi.token.signing.activeKeyId. To rotate, add the new key, make it the
+ * active one, and remove the old key once the tokens signed with it have expired.
+ *
+ * Since a signed token can't be withdrawn, an optional revocation list can be enabled. It holds revoked tokens until
+ * they expire, and revoked users (e.g. on logout or a permission change) for one token time-to-live, rejecting every
+ * token issued to them up until the revocation. The revocation list is local to this node, so in a cluster a revoked
+ * token is only rejected by the node that revoked it. What the token gives access to is still checked on every
+ * request either way.
+ */
+public class SignedWOPIAccessTokenStore implements WOPIAccessTokenStore, WOPIAccessTokenStoreMetrics {
+    private static final Log logger = LogFactory.getLog(SignedWOPIAccessTokenStore.class);
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final char PART_SEPARATOR = '.';
+    private static final String PAYLOAD_SEPARATOR = "\n";
+    private static final long DEFAULT_USER_REVOCATION_TTL_MS = 1000L * 60 * 60 * 24;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private String keys;
+    private String activeKeyId;
+    private boolean revocationEnabled;
+    private long userRevocationTtlMs = DEFAULT_USER_REVOCATION_TTL_MS;
+
+    private Map<String, ThreadLocal<Mac>> macsByKeyId;
+
+    /** Revoked token signatures, mapped to the expiry date of the token. */
+    private final ConcurrentMap<String, Long> revokedTokens = new ConcurrentHashMap<>();
+
+    /** Revoked user names, mapped to the time of revocation. */
+    private final ConcurrentMap<String, Long> revokedUsers = new ConcurrentHashMap<>();
+
+    private final AtomicLong prunedRevocationCount = new AtomicLong();
+    private long prunedAtLastRead;
+    private long lastReadTime = System.currentTimeMillis();
+
+    //<editor-fold desc="Bean setters">
+    public void setKeys(String keys) {
+        this.keys = keys;
+    }
+
+    public void setActiveKeyId(String activeKeyId) {
+        this.activeKeyId = activeKeyId;
+    }
+
+    public void setRevocationEnabled(boolean revocationEnabled) {
+        this.revocationEnabled = revocationEnabled;
+    }
+
+    /**
+     * How long a user revocation is kept. Should be no shorter than the token time-to-live, or tokens issued before
+     * the revocation become valid again once it is dropped.
+     *
+     * @param userRevocationTtlMs
+     */
+    public void setUserRevocationTtlMs(long userRevocationTtlMs) {
+        this.userRevocationTtlMs = userRevocationTtlMs;
+    }
+    //</editor-fold>
+
+    public void init() {
+        if (keys == null || keys.trim().isEmpty()) {
+            throw new AlfrescoRuntimeException("Signed WOPI access tokens are enabled but no signing keys are "
+                    + "configured in lool.wopi.token.signing.keys");
+        }
+        Map<String, ThreadLocal<Mac>> macs = new HashMap<>();
+        for (String keyDef : keys.split(",")) {
+            String[] parts = keyDef.trim().split(":", 2);
+            if (parts.length != 2 || parts[0].isEmpty() || parts[0].indexOf(PART_SEPARATOR) >= 0) {
+                throw new AlfrescoRuntimeException("Invalid WOPI token signing key definition. Expected "
+                        + "keyId:base64Secret with no '.' in the key id");
+            }
+            final SecretKeySpec secretKey = new SecretKeySpec(Base64.getDecoder().decode(parts[1]), HMAC_ALGORITHM);
+            // Fail on startup rather than on the first request if the key can't be used
+            newMac(secretKey);
+            macs.put(parts[0], ThreadLocal.withInitial(() -> newMac(secretKey)));
+        }
+        if (!macs.containsKey(activeKeyId)) {
+            throw new AlfrescoRuntimeException("The active WOPI token signing key [" + activeKeyId
+                    + "] is not among the configured keys");
+        }
+        macsByKeyId = macs;
+    }
+
+    /**
+     * Signed tokens can't be renewed in place, so a new token is always issued. The token generator is not used.
+     */
+    @Override
+    public WOPIAccessTokenInfo renewOrCreate(String fileId, String userName, Date now, Date newExpiresAt,
+                                             Supplier<String> tokenGenerator) {
+        String payload = String.join(PAYLOAD_SEPARATOR, fileId, userName, Long.toString(now.getTime()),
+                Long.toString(newExpiresAt.getTime()));
+        String signedPart = activeKeyId + PART_SEPARATOR
+                + ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+        String accessToken = signedPart + PART_SEPARATOR + ENCODER.encodeToString(sign(activeKeyId, signedPart));
+        return new WOPIAccessTokenInfo(accessToken, now, newExpiresAt, fileId, userName);
+    }
+
+    /**
+     * Verifies the token signature and decodes it. Returns null if the token is malformed, signed with an unknown
+     * key, tampered with or revoked.
+     */
+    @Override
+    public WOPIAccessTokenInfo get(String accessToken) {
+        if (accessToken == null) {
+            return null;
+        }
+        int signatureStart = accessToken.lastIndexOf(PART_SEPARATOR);
+        int payloadStart = accessToken.indexOf(PART_SEPARATOR);
+        if (payloadStart <= 0 || signatureStart == payloadStart) {
+            return null;
+        }
+        String keyId = accessToken.substring(0, payloadStart);
+        if (!macsByKeyId.containsKey(keyId)) {
+            return null;
+        }
+        String signedPart = accessToken.substring(0, signatureStart);
+        String signature = accessToken.substring(signatureStart + 1);
+        try {
+            if (!MessageDigest.isEqual(sign(keyId, signedPart), DECODER.decode(signature))) {
+                return null;
+            }
+            String payload = new String(DECODER.decode(accessToken.substring(payloadStart + 1, signatureStart)),
+                    StandardCharsets.UTF_8);
+            String[] fields = payload.split(PAYLOAD_SEPARATOR, -1);
+            if (fields.length != 4) {
+                return null;
+            }
+            WOPIAccessTokenInfo tokenInfo = new WOPIAccessTokenInfo(accessToken,
+                    new Date(Long.parseLong(fields[2])), new Date(Long.parseLong(fields[3])), fields[0], fields[1]);
+            return isRevoked(signature, tokenInfo) ? null : tokenInfo;
+        } catch (IllegalArgumentException e) {
+            // Bad base64 or a non numeric date; NumberFormatException is an IllegalArgumentException
+            return null;
+        }
+    }
+
+    /**
+     * Revokes the token if the revocation list is enabled. Otherwise the token stays valid until it expires.
+     *
+     * @return true if the token was revoked
+     */
+    @Override
+    public boolean remove(WOPIAccessTokenInfo tokenInfo) {
+        return revoke(tokenInfo);
+    }
+
+    /**
+     * Nothing is held server side.
+     */
+    @Override
+    public int size() {
+        return 0;
+    }
+
+    /**
+     * Adds the token to the revocation list.
+     *
+     * @param tokenInfo
+     * @return false if the revocation list is disabled
+     */
+    public boolean revoke(WOPIAccessTokenInfo tokenInfo) {
+        if (!revocationEnabled) {
+            logger.warn("Cannot revoke a signed WOPI access token: the revocation list is disabled");
+            return false;
+        }
+        String accessToken = tokenInfo.getAccessToken();
+        revokedTokens.put(accessToken.substring(accessToken.lastIndexOf(PART_SEPARATOR) + 1),
+                tokenInfo.getExpiresAt().getTime());
+        pruneRevocations();
+        return true;
+    }
+
+    /**
+     * Rejects every token issued to the user up until now, e.g. on logout or when the user's permissions change.
+     *
+     * @param userName
+     * @return false if the revocation list is disabled
+     */
+    public boolean revokeUser(String userName) {
+        if (!revocationEnabled) {
+            logger.warn("Cannot revoke the signed WOPI access tokens of [" + userName
+                    + "]: the revocation list is disabled");
+            return false;
+        }
+        revokedUsers.put(userName, System.currentTimeMillis());
+        pruneRevocations();
+        return true;
+    }
+
+    private boolean isRevoked(String signature, WOPIAccessTokenInfo tokenInfo) {
+        if (revokedTokens.isEmpty() && revokedUsers.isEmpty()) {
+            return false;
+        }
+        if (revokedTokens.containsKey(signature)) {
+            return true;
+        }
+        Long userRevokedAt = revokedUsers.get(tokenInfo.getUserName());
+        return userRevokedAt != null && tokenInfo.getIssuedAt().getTime() <= userRevokedAt;
+    }
+
+    /**
+     * Revoked tokens only need to be remembered until they expire anyway, so the list stays small.
+     */
+    private void pruneRevocations() {
+        long now = System.currentTimeMillis();
+        int before = revokedTokens.size() + revokedUsers.size();
+        revokedTokens.values().removeIf(expiresAt -> expiresAt <= now);
+        revokedUsers.values().removeIf(revokedAt -> revokedAt + userRevocationTtlMs <= now);
+        prunedRevocationCount.addAndGet(Math.max(0, before - revokedTokens.size() - revokedUsers.size()));
+    }
+
+    //<editor-fold desc="Metrics">
+    /**
+     * See size(); the issued tokens aren't held.
+     */
+    @Override
+    public int getLiveTokenCount() {
+        return size();
+    }
+
+    /**
+     * There is no limit, as nothing is held.
+     *
+     * @return always 0
+     */
+    @Override
+    public int getMaxTokens() {
+        return 0;
+    }
+
+    /**
+     * Counts the revocations dropped from the revocation list once they were no longer needed.
+     */
+    @Override
+    public long getExpiredEvictionCount() {
+        return prunedRevocationCount.get();
+    }
+
+    /**
+     * The revocation list is never full.
+     *
+     * @return always 0
+     */
+    @Override
+    public long getOverflowEvictionCount() {
+        return 0;
+    }
+
+    /**
+     * There is no sweeper here, so the rate is measured between successive reads of this metric.
+     */
+    @Override
+    public synchronized double getEvictionsPerMinute() {
+        long now = System.currentTimeMillis();
+        long evictions = prunedRevocationCount.get();
+        long elapsed = now - lastReadTime;
+        double rate = elapsed > 0 ? (evictions - prunedAtLastRead) * 60000d / elapsed : 0d;
+        prunedAtLastRead = evictions;
+        lastReadTime = now;
+        return rate;
+    }
+    //</editor-fold>
+
+    private byte[] sign(String keyId, String signedPart) {
+        Mac mac = macsByKeyId.get(keyId).get();
+        return mac.doFinal(signedPart.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Mac newMac(SecretKeySpec secretKey) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secretKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new AlfrescoRuntimeException("Unable to initialise the WOPI token signing key", e);
+        }
+    }
+}
@@ -1,16 +1,21 @@
 package dk.magenta.libreoffice.online.service;
 
+import java.io.Serializable;
 import java.util.Date;
 
 /**
  * POJO to hold info about a WOPI access token.
+ * Serializable so it can be held in the clustered token store.
  *
  * Created by seth on 30/04/16.
  */
-public class WOPIAccessTokenInfo {
+public class WOPIAccessTokenInfo implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private String accessToken;
     private Date issuedAt;
-    private Date expiresAt;
+    // Renewed in place by the token store, so must be visible to the request threads checking it
+    private volatile Date expiresAt;
     private String fileId;
     private String userName;
 
@@ -33,11 +38,12 @@ public class WOPIAccessTokenInfo {
     }
 
     /**
-     * Return whether the access token is valid for the given date.
+     * Return whether the access token is valid for the given date. A token is valid from the instant it is issued,
+     * so it can be used within the same millisecond.
      * @return
      */
     public boolean isValid(Date when) {
-        return when.after(issuedAt) && when.before(expiresAt);
+        return !when.before(issuedAt) && when.before(expiresAt);
     }
 
     public Date getIssuedAt() {
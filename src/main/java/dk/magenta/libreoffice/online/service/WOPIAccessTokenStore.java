@@ -0,0 +1,50 @@
+package dk.magenta.libreoffice.online.service;
+
+import java.util.Date;
+import java.util.function.Supplier;
+
+/**
+ * SPI for the store holding the WOPI access tokens handed out by the LOOLService.
+ *
+ * Implementations must be thread safe. Which implementation is used is selected with the lool.wopi.token.store
+ * property in alfresco-global.properties.
+ */
+public interface WOPIAccessTokenStore {
+
+    /**
+     * Renews the token held by the user for the given file, or creates a new one if the user has no valid token for
+     * the file.
+     *
+     * @param fileId
+     * @param userName
+     * @param now
+     * @param newExpiresAt
+     * @param tokenGenerator generates the access token string should a new token be needed
+     * @return
+     */
+    WOPIAccessTokenInfo renewOrCreate(String fileId, String userName, Date now, Date newExpiresAt,
+                                      Supplier<String> tokenGenerator);
+
+    /**
+     * Return stored info about the given token if it exists. Otherwise return null.
+     *
+     * @param accessToken
+     * @return
+     */
+    WOPIAccessTokenInfo get(String accessToken);
+
+    /**
+     * Removes the given token from the store.
+     *
+     * @param tokenInfo
+     * @return true if the token was still held by the store
+     */
+    boolean remove(WOPIAccessTokenInfo tokenInfo);
+
+    /**
+     * Returns the number of tokens currently held in the store.
+     *
+     * @return
+     */
+    int size();
+}
@@ -0,0 +1,37 @@
+package dk.magenta.libreoffice.online.service;
+
+/**
+ * Management view of the access token store. This is the interface exposed over JMX.
+ */
+public interface WOPIAccessTokenStoreMetrics {
+
+    /**
+     * Returns the number of tokens currently held in the store.
+     * @return
+     */
+    int getLiveTokenCount();
+
+    /**
+     * Returns the maximum number of tokens the store will hold.
+     * @return
+     */
+    int getMaxTokens();
+
+    /**
+     * Returns the total number of tokens removed because they expired.
+     * @return
+     */
+    long getExpiredEvictionCount();
+
+    /**
+     * Returns the total number of tokens removed to make room for new tokens when the store was full.
+     * @return
+     */
+    long getOverflowEvictionCount();
+
+    /**
+     * Returns the number of tokens evicted per minute, measured over the last sweep interval.
+     * @return
+     */
+    double getEvictionsPerMinute();
+}
@@ -0,0 +1,206 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.util.TempFileProvider;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node local, on-disk LRU cache of recently served content, so documents opened by many users at once, or reloaded
+ * by LOOL, are read from a slow (e.g. S3 backed) content store only once. Content is keyed by its content URL, which
+ * always refers to the same binary, so an entry never has to be invalidated; a new version of a document simply has a
+ * new URL and the old entry ages out.
+ *
+ * The cache holds at most maxBytes of content. Content larger than that isn't cached at all. Loading is single-flight:
+ * while a content URL is being loaded, further requests for it wait for that load instead of reading the content
+ * store themselves. If the load fails every one of them gets null and reads the content store directly.
+ *
+ * Evicted files are deleted straight away. Requests still sending them keep reading through their open channels, but
+ * a request that was handed a file it hadn't opened yet can find it gone, and should then read the content store.
+ * The cache directory is emptied on startup.
+ */
+public class WOPIContentCache {
+    private static final Log logger = LogFactory.getLog(WOPIContentCache.class);
+
+    private static final String DEFAULT_DIRECTORY_NAME = "lool-content-cache";
+
+    private String directory;
+    private long maxBytes;
+    private WOPIMetrics wopiMetrics;
+
+    private File cacheDirectory;
+    // Guarded by this; in access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final ConcurrentMap<String, CompletableFuture<File>> loading = new ConcurrentHashMap<>();
+
+    //<editor-fold desc="Bean setters">
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 0 or less disables the cache.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
+    }
+    //</editor-fold>
+
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        cacheDirectory = directory == null || directory.trim().isEmpty()
+                ? TempFileProvider.getTempDir(DEFAULT_DIRECTORY_NAME) : new File(directory.trim());
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            logger.error("Unable to create the content cache directory " + cacheDirectory
+                    + ", the content cache is disabled");
+            maxBytes = 0;
+            return;
+        }
+        // What is left from before a restart isn't in the index, so it would never be used or evicted
+        File[] leftovers = cacheDirectory.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (!leftover.delete()) {
+                    logger.warn("Unable to delete " + leftover + " from the content cache directory");
+                }
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns a local file holding the content of the reader, loading it into the cache if needed. The reader itself
+     * is never read from, so the caller can still use it if null is returned.
+     *
+     * @param reader
+     * @return the cached file, or null if the content isn't cached and couldn't be (the cache is disabled, the
+     * content is too large or loading it failed)
+     */
+    public File getFile(ContentReader reader) {
+        return getFile(reader, true);
+    }
+
+    /**
+     * Loads the content of the reader into the cache, unless it is cached or being loaded already. Like getFile, but
+     * not counted as a hit or miss, since no request is served.
+     *
+     * @param reader
+     */
+    public void warm(ContentReader reader) {
+        getFile(reader, false);
+    }
+
+    private File getFile(ContentReader reader, boolean served) {
+        if (!isEnabled() || reader.getSize() > maxBytes) {
+            return null;
+        }
+        String contentUrl = reader.getContentUrl();
+        File cached = lookup(contentUrl);
+        if (cached != null) {
+            if (served) {
+                wopiMetrics.recordContentCacheHit();
+            }
+            return cached;
+        }
+        CompletableFuture<File> load = new CompletableFuture<>();
+        CompletableFuture<File> inFlight = loading.putIfAbsent(contentUrl, load);
+        if (inFlight != null) {
+            if (served) {
+                wopiMetrics.recordContentCacheHit();
+            }
+            // Never completed exceptionally, a failed load completes with null
+            return inFlight.join();
+        }
+        File file = null;
+        try {
+            // Another request may have finished loading it between the lookup and now
+            file = lookup(contentUrl);
+            if (file == null) {
+                if (served) {
+                    wopiMetrics.recordContentCacheMiss();
+                }
+                file = load(contentUrl, reader);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to load " + contentUrl + " into the content cache: " + e.getMessage());
+        } finally {
+            load.complete(file);
+            loading.remove(contentUrl, load);
+        }
+        return file;
+    }
+
+    private synchronized File lookup(String contentUrl) {
+        CachedFile cachedFile = files.get(contentUrl);
+        return cachedFile != null ? cachedFile.file : null;
+    }
+
+    private File load(String contentUrl, ContentReader reader) throws IOException {
+        File part = File.createTempFile("load", ".part", cacheDirectory);
+        try {
+            // A reader can only be read once, so leave the caller's to the caller
+            reader.getReader().getContent(part);
+            File file = new File(cacheDirectory, DigestUtils.sha256Hex(contentUrl));
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            add(contentUrl, file);
+            return file;
+        } finally {
+            if (part.exists() && !part.delete()) {
+                logger.warn("Unable to delete " + part);
+            }
+        }
+    }
+
+    /**
+     * Adds a loaded file, evicting the least recently used files until the cache is back within maxBytes.
+     */
+    private synchronized void add(String contentUrl, File file) {
+        CachedFile added = new CachedFile(file, file.length());
+        CachedFile replaced = files.put(contentUrl, added);
+        totalBytes += added.size - (replaced != null ? replaced.size : 0);
+        Iterator<CachedFile> eldest = files.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            CachedFile evicted = eldest.next();
+            if (evicted == added) {
+                continue;
+            }
+            eldest.remove();
+            totalBytes -= evicted.size;
+            if (!evicted.file.delete()) {
+                logger.warn("Unable to delete " + evicted.file + " from the content cache");
+            }
+        }
+    }
+
+    private static final class CachedFile {
+        private final File file;
+        private final long size;
+
+        private CachedFile(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms up the content of a document as soon as an access token is issued to open it, since LOOL will ask for the
+ * content with GetFile within seconds. Only the single token endpoint prefetches: the bulk one issues tokens for
+ * documents that are merely listed, most of which are never opened. Content in a file based content store is read
+ * once to bring it into the OS page cache; any other content is loaded into the WOPIContentCache, which the GetFile
+ * then finds it in, or waits for if it is still loading.
+ *
+ * This is only ever an optimisation, so it is done by a bounded pool of threads with a bounded queue. A prefetch that
+ * doesn't fit in the queue, is for content larger than maxBytes, or fails is simply dropped. A document already
+ * queued isn't queued again. Only the database lookup of the content is done in a (read only) transaction; the content
+ * itself is read outside of it.
+ */
+public class WOPIContentPrefetcher {
+    private static final Log logger = LogFactory.getLog(WOPIContentPrefetcher.class);
+
+    private static final Set<String> PREFETCH_ACTIONS = new HashSet<>(Arrays.asList("edit", "view"));
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_QUEUE_CAPACITY = 100;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private NodeService nodeService;
+    private ContentService contentService;
+    private WOPIContentCache contentCache;
+    private RetryingTransactionHelper retryingTransactionHelper;
+    private boolean enabled;
+    private long maxBytes;
+    private int threads = DEFAULT_THREADS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private ThreadPoolExecutor executor;
+    private final Set<NodeRef> queued = ConcurrentHashMap.newKeySet();
+
+    //<editor-fold desc="Bean setters">
+    public void setNodeService(NodeService nodeService) {
+        this.nodeService = nodeService;
+    }
+
+    public void setContentService(ContentService contentService) {
+        this.contentService = contentService;
+    }
+
+    public void setContentCache(WOPIContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
+        this.retryingTransactionHelper = retryingTransactionHelper;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+    //</editor-fold>
+
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "WOPIContentPrefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Schedules the content of the node to be prefetched once the current transaction, which issued a token for the
+     * given action on it, has committed.
+     *
+     * @param nodeRef
+     * @param action the action the token was issued for; only edit and view are followed by a GetFile
+     */
+    public void prefetchAfterCommit(final NodeRef nodeRef, String action) {
+        if (executor == null || !PREFETCH_ACTIONS.contains(action)) {
+            return;
+        }
+        AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+            @Override
+            public void afterCommit() {
+                if (!queued.add(nodeRef)) {
+                    return;
+                }
+                try {
+                    executor.execute(() -> {
+                        try {
+                            prefetch(nodeRef);
+                        } finally {
+                            queued.remove(nodeRef);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    queued.remove(nodeRef);
+                    logger.debug("Prefetch queue full, not prefetching " + nodeRef);
+                }
+            }
+        });
+    }
+
+    private void prefetch(NodeRef nodeRef) {
+        try {
+            ContentReader reader = AuthenticationUtil.runAsSystem(() -> retryingTransactionHelper.doInTransaction(
+                    () -> nodeService.exists(nodeRef)
+                            ? contentService.getReader(nodeRef, ContentModel.PROP_CONTENT) : null,
+                    true, false));
+            if (reader == null || !reader.exists() || reader.getSize() > maxBytes) {
+                return;
+            }
+            if (reader instanceof FileContentReader) {
+                readThrough((FileContentReader) reader);
+            } else {
+                contentCache.warm(reader);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Unable to prefetch the content of " + nodeRef + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the file once, discarding what is read, so it is in the OS page cache when GetFile sends it.
+     */
+    private void readThrough(FileContentReader reader) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(reader.getFile().toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            while (fileChannel.read(buffer) > 0) {
+                buffer.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package dk.magenta.libreoffice.online.service;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Immutable index of the urlsrc attributes of a discovery.xml document, keyed by (mimetype, action) and by
+ * (extension, action). Looking up a src URL is a couple of hash lookups and allocates nothing.
+ *
+ * Where discovery.xml lists the same key more than once the first occurrence wins, as it did with the XPath lookup
+ * this replaces.
+ */
+public final class WOPIDiscovery {
+    private static final String NOT_FOUND = "";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        // discovery.xml comes over the network, so don't resolve DTDs or external entities
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final Map<String, Map<String, String>> urlSrcByMimeType;
+    private final Map<String, Map<String, String>> urlSrcByExtension;
+
+    private WOPIDiscovery(Map<String, Map<String, String>> urlSrcByMimeType,
+                          Map<String, Map<String, String>> urlSrcByExtension) {
+        this.urlSrcByMimeType = urlSrcByMimeType;
+        this.urlSrcByExtension = urlSrcByExtension;
+    }
+
+    /**
+     * Builds the index from a discovery.xml stream in a single streaming pass. Only the app and action elements are
+     * looked at; everything else, proof keys included, is skipped without being materialised.
+     * The stream is not closed.
+     *
+     * @param discoveryInputStream
+     * @return
+     * @throws XMLStreamException if the stream isn't well formed XML
+     */
+    public static WOPIDiscovery parse(InputStream discoveryInputStream) throws XMLStreamException {
+        return parse(discoveryInputStream, UnaryOperator.identity());
+    }
+
+    /**
+     * Builds the index from a discovery.xml stream, passing every urlsrc attribute through the given resolver.
+     * Used for the discovery.xml bundled with the module, whose urlsrc attributes are placeholders.
+     *
+     * @param discoveryInputStream
+     * @param urlSrcResolver
+     * @return
+     * @throws XMLStreamException if the stream isn't well formed XML
+     */
+    public static WOPIDiscovery parse(InputStream discoveryInputStream, UnaryOperator<String> urlSrcResolver)
+            throws XMLStreamException {
+        Map<String, Map<String, String>> byMimeType = new HashMap<>();
+        Map<String, Map<String, String>> byExtension = new HashMap<>();
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(discoveryInputStream);
+        try {
+            String appName = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String element = reader.getLocalName();
+                    if ("app".equals(element)) {
+                        appName = attribute(reader, "name");
+                    } else if ("action".equals(element) && appName != null) {
+                        String actionName = attribute(reader, "name");
+                        String urlSrc = urlSrcResolver.apply(attribute(reader, "urlsrc"));
+                        index(byMimeType, appName, actionName, urlSrc);
+                        index(byExtension, attribute(reader, "ext"), actionName, urlSrc);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "app".equals(reader.getLocalName())) {
+                    appName = null;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new WOPIDiscovery(freeze(byMimeType), freeze(byExtension));
+    }
+
+    /**
+     * Return the src url for a given mimetype and action, or an empty string if discovery.xml doesn't list one.
+     *
+     * @param mimeType
+     * @param action
+     * @return
+     */
+    public String getSrcURL(String mimeType, String action) {
+        return lookup(urlSrcByMimeType, mimeType, action);
+    }
+
+    /**
+     * Return the src url for a given file extension and action, or an empty string if discovery.xml doesn't list one.
+     *
+     * @param extension
+     * @param action
+     * @return
+     */
+    public String getSrcURLForExtension(String extension, String action) {
+        return lookup(urlSrcByExtension, extension, action);
+    }
+
+    private static String lookup(Map<String, Map<String, String>> index, String key, String action) {
+        if (key == null || action == null) {
+            return NOT_FOUND;
+        }
+        Map<String, String> byAction = index.get(key);
+        if (byAction == null) {
+            return NOT_FOUND;
+        }
+        String urlSrc = byAction.get(action);
+        return urlSrc != null ? urlSrc : NOT_FOUND;
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value != null ? value : "";
+    }
+
+    private static void index(Map<String, Map<String, String>> index, String key, String action, String urlSrc) {
+        if (key.isEmpty() || action.isEmpty()) {
+            return;
+        }
+        index.computeIfAbsent(key, k -> new HashMap<>()).putIfAbsent(action, urlSrc);
+    }
+
+    private static Map<String, Map<String, String>> freeze(Map<String, Map<String, String>> index) {
+        for (Map.Entry<String, Map<String, String>> entry : index.entrySet()) {
+            entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(index);
+    }
+}
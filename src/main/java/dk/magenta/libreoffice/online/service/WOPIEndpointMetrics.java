@@ -0,0 +1,46 @@
+package dk.magenta.libreoffice.online.service;
+
+/**
+ * Management view of the requests served by one WOPI endpoint. This is the interface exposed over JMX.
+ * The percentiles are estimated from a fixed histogram, so they are the upper bound of the bucket they fall in (or the
+ * maximum, if that is lower).
+ */
+public interface WOPIEndpointMetrics {
+
+    /**
+     * Returns the total number of requests served.
+     * @return
+     */
+    long getRequestCount();
+
+    /**
+     * Returns the total number of requests that failed with a server error (5xx).
+     * @return
+     */
+    long getErrorCount();
+
+    /**
+     * @return
+     */
+    double getMeanMillis();
+
+    /**
+     * @return
+     */
+    double getMaxMillis();
+
+    /**
+     * @return
+     */
+    double get50thPercentileMillis();
+
+    /**
+     * @return
+     */
+    double get95thPercentileMillis();
+
+    /**
+     * @return
+     */
+    double get99thPercentileMillis();
+}
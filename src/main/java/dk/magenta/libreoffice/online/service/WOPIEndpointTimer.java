@@ -0,0 +1,139 @@
+package dk.magenta.libreoffice.online.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the latency of the requests served by one WOPI endpoint in a fixed histogram. Recording a request is a few
+ * LongAdder increments and a short search of the bucket bounds, with no locking and no allocation.
+ */
+public final class WOPIEndpointTimer implements WOPIEndpointMetrics {
+    /**
+     * Upper bounds of the histogram buckets, in milliseconds. A last, unbounded, bucket catches the rest.
+     */
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_MS.length];
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = TimeUnit.MILLISECONDS.toNanos(BUCKET_BOUNDS_MS[i]);
+        }
+    }
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final String name;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public WOPIEndpointTimer(String name) {
+        this.name = name;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the upper bounds of the histogram buckets, in milliseconds, not counting the last, unbounded, bucket.
+     *
+     * @return
+     */
+    public static long[] getBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MS.clone();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos, boolean failed) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+        if (failed) {
+            errorCount.increment();
+        }
+    }
+
+    /**
+     * Returns the number of requests in each bucket, the last one being the unbounded bucket.
+     *
+     * @return
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    //<editor-fold desc="Metrics">
+    @Override
+    public long getRequestCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long requests = count.sum();
+        return requests == 0 ? 0 : totalNanos.sum() / NANOS_PER_MILLI / requests;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get50thPercentileMillis() {
+        return percentileMillis(0.5);
+    }
+
+    @Override
+    public double get95thPercentileMillis() {
+        return percentileMillis(0.95);
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+        return percentileMillis(0.99);
+    }
+    //</editor-fold>
+
+    private double percentileMillis(double quantile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MS[i], getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+}
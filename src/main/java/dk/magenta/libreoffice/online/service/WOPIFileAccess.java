@@ -0,0 +1,37 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * What an access token gives access to: the file node, whether it exists and whether the user of the token may read
+ * and write it. Immutable, see WOPIFileAccessCache.
+ */
+public final class WOPIFileAccess {
+    private final NodeRef nodeRef;
+    private final boolean exists;
+    private final boolean canRead;
+    private final boolean canWrite;
+
+    public WOPIFileAccess(NodeRef nodeRef, boolean exists, boolean canRead, boolean canWrite) {
+        this.nodeRef = nodeRef;
+        this.exists = exists;
+        this.canRead = canRead;
+        this.canWrite = canWrite;
+    }
+
+    public NodeRef getNodeRef() {
+        return nodeRef;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean canRead() {
+        return canRead;
+    }
+
+    public boolean canWrite() {
+        return canWrite;
+    }
+}
@@ -0,0 +1,166 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.PermissionServicePolicies;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+
+/**
+ * Node local cache of what each access token gives access to (WOPIFileAccess), keyed by access token. The file
+ * access of a token is resolved when the token is issued, so the WOPI calls that follow only check a map entry
+ * instead of looking up the node and evaluating permissions again.
+ *
+ * The cache is kept next to the token store rather than in the token info itself, so it works the same whichever
+ * store is in use, including the signed tokens that are decoded afresh on every request.
+ *
+ * An entry is dropped as soon as its file is deleted. Permission changes can affect any number of files (a grant on a
+ * folder is inherited by everything below it, as is a move), so any local permission grant or revocation, change of
+ * inheritance or move makes every entry stale. Both happen again once the transaction has committed, so a token
+ * resolved in between doesn't keep the uncommitted state. Changes to group membership and changes made on other nodes
+ * of a cluster don't fire any policy here, so an entry is also never used for more than ttlSeconds.
+ */
+public class WOPIFileAccessCache implements NodeServicePolicies.BeforeDeleteNodePolicy,
+        NodeServicePolicies.OnMoveNodePolicy, PermissionServicePolicies.OnGrantLocalPermission,
+        PermissionServicePolicies.OnRevokeLocalPermission, PermissionServicePolicies.OnInheritPermissionsEnabled,
+        PermissionServicePolicies.OnInheritPermissionsDisabled {
+    private static final long DEFAULT_TTL_SECONDS = 60;
+    private static final int DEFAULT_MAX_ITEMS = 10000;
+
+    private PolicyComponent policyComponent;
+    private NodeService nodeService;
+    private PermissionService permissionService;
+
+    private final WOPILocalCache<String, WOPIFileAccess> entries =
+            new WOPILocalCache<>(DEFAULT_TTL_SECONDS, DEFAULT_MAX_ITEMS, WOPIFileAccess::getNodeRef);
+
+    //<editor-fold desc="Bean setters">
+    public void setPolicyComponent(PolicyComponent policyComponent) {
+        this.policyComponent = policyComponent;
+    }
+
+    public void setNodeService(NodeService nodeService) {
+        this.nodeService = nodeService;
+    }
+
+    public void setPermissionService(PermissionService permissionService) {
+        this.permissionService = permissionService;
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        entries.setTtlSeconds(ttlSeconds);
+    }
+
+    public void setMaxItems(int maxItems) {
+        entries.setMaxItems(maxItems);
+    }
+    //</editor-fold>
+
+    public void init() {
+        policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME,
+                ContentModel.TYPE_CONTENT,
+                new JavaBehaviour(this, "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME,
+                ContentModel.TYPE_BASE,
+                new JavaBehaviour(this, "onMoveNode", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(PermissionServicePolicies.OnGrantLocalPermission.QNAME,
+                ContentModel.TYPE_BASE,
+                new JavaBehaviour(this, "onGrantLocalPermission", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(PermissionServicePolicies.OnRevokeLocalPermission.QNAME,
+                ContentModel.TYPE_BASE,
+                new JavaBehaviour(this, "onRevokeLocalPermission", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(PermissionServicePolicies.OnInheritPermissionsEnabled.QNAME,
+                ContentModel.TYPE_BASE,
+                new JavaBehaviour(this, "onInheritPermissionsEnabled", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(PermissionServicePolicies.OnInheritPermissionsDisabled.QNAME,
+                ContentModel.TYPE_BASE,
+                new JavaBehaviour(this, "onInheritPermissionsDisabled", NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * Returns what the token gives access to, resolving it as the user of the token if it isn't cached. Must be
+     * called inside a transaction.
+     *
+     * @param tokenInfo
+     * @return
+     */
+    public WOPIFileAccess get(WOPIAccessTokenInfo tokenInfo) {
+        return entries.get(tokenInfo.getAccessToken(),
+                accessToken -> AuthenticationUtil.runAs(() -> resolve(new NodeRef(
+                        StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, tokenInfo.getFileId())), tokenInfo.getUserName()));
+    }
+
+    /**
+     * Drops the entries of every token for the given file.
+     *
+     * @param nodeRef
+     */
+    public void invalidate(NodeRef nodeRef) {
+        entries.invalidateNode(nodeRef);
+    }
+
+    /**
+     * Makes every entry stale. They are dropped as they are next looked up or evicted.
+     */
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    @Override
+    public void beforeDeleteNode(NodeRef nodeRef) {
+        entries.invalidateNodeNowAndAfterCommit(nodeRef);
+    }
+
+    @Override
+    public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+        permissionsChanged();
+    }
+
+    @Override
+    public void onGrantLocalPermission(NodeRef nodeRef, String authority, String permission) {
+        permissionsChanged();
+    }
+
+    @Override
+    public void onRevokeLocalPermission(NodeRef nodeRef, String authority, String permission) {
+        permissionsChanged();
+    }
+
+    @Override
+    public void onInheritPermissionsEnabled(NodeRef nodeRef) {
+        permissionsChanged();
+    }
+
+    @Override
+    public void onInheritPermissionsDisabled(NodeRef nodeRef, boolean async) {
+        permissionsChanged();
+    }
+
+    /**
+     * Resolves what the current user may do with the given file, bypassing the cache. Must be called inside a
+     * transaction.
+     *
+     * @param nodeRef
+     * @return
+     */
+    public WOPIFileAccess resolve(NodeRef nodeRef) {
+        if (!nodeService.exists(nodeRef)) {
+            return new WOPIFileAccess(nodeRef, false, false, false);
+        }
+        return new WOPIFileAccess(nodeRef, true,
+                permissionService.hasPermission(nodeRef, PermissionService.READ) == AccessStatus.ALLOWED,
+                permissionService.hasPermission(nodeRef, PermissionService.WRITE) == AccessStatus.ALLOWED);
+    }
+
+    private void permissionsChanged() {
+        entries.invalidateAllNowAndAfterCommit();
+    }
+}
@@ -0,0 +1,58 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.json.JSONObject;
+
+/**
+ * The node dependent part of a CheckFileInfo response. Immutable; the JSON for it is rendered once, when it is
+ * created, so a cached instance can be written out as is.
+ */
+public final class WOPIFileInfo {
+    private final String baseFileName;
+    private final String lastModifiedTime;
+    private final String ownerId;
+    private final long size;
+    private final String version;
+    private final String json;
+
+    public WOPIFileInfo(String baseFileName, String lastModifiedTime, String ownerId, long size, String version) {
+        this.baseFileName = baseFileName;
+        this.lastModifiedTime = lastModifiedTime;
+        this.ownerId = ownerId;
+        this.size = size;
+        this.version = version;
+        this.json = "\"BaseFileName\":" + JSONObject.quote(baseFileName)
+                + ",\"LastModifiedTime\":" + JSONObject.quote(lastModifiedTime)
+                + ",\"OwnerId\":" + JSONObject.quote(ownerId)
+                + ",\"Size\":" + size
+                + ",\"Version\":" + JSONObject.quote(version);
+    }
+
+    public String getBaseFileName() {
+        return baseFileName;
+    }
+
+    public String getLastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the fields above as JSON object members, without the enclosing braces.
+     *
+     * @return
+     */
+    public String getJson() {
+        return json;
+    }
+}
@@ -0,0 +1,80 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Node local cache of the node dependent part of the CheckFileInfo response, keyed by node.
+ *
+ * An entry is dropped as soon as the properties of its node are updated (which covers content updates and new
+ * versions) or the node is deleted, and again once that transaction has committed, so a reader that loaded the
+ * node in between doesn't leave the uncommitted state behind. The policies only fire on the node making the change,
+ * so in a cluster an entry is also never used for more than ttlSeconds.
+ */
+public class WOPIFileInfoCache implements NodeServicePolicies.OnUpdatePropertiesPolicy,
+        NodeServicePolicies.BeforeDeleteNodePolicy {
+    private static final long DEFAULT_TTL_SECONDS = 60;
+    private static final int DEFAULT_MAX_ITEMS = 10000;
+
+    private PolicyComponent policyComponent;
+
+    private final WOPILocalCache<NodeRef, WOPIFileInfo> entries =
+            new WOPILocalCache<>(DEFAULT_TTL_SECONDS, DEFAULT_MAX_ITEMS);
+
+    //<editor-fold desc="Bean setters">
+    public void setPolicyComponent(PolicyComponent policyComponent) {
+        this.policyComponent = policyComponent;
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        entries.setTtlSeconds(ttlSeconds);
+    }
+
+    public void setMaxItems(int maxItems) {
+        entries.setMaxItems(maxItems);
+    }
+    //</editor-fold>
+
+    public void init() {
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME,
+                ContentModel.TYPE_CONTENT,
+                new JavaBehaviour(this, "onUpdateProperties", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME,
+                ContentModel.TYPE_CONTENT,
+                new JavaBehaviour(this, "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * Returns the cached file info for the node, loading it with the given loader if there is none.
+     *
+     * @param nodeRef
+     * @param loader
+     * @return
+     */
+    public WOPIFileInfo get(NodeRef nodeRef, Function<NodeRef, WOPIFileInfo> loader) {
+        return entries.get(nodeRef, loader);
+    }
+
+    public void invalidate(NodeRef nodeRef) {
+        entries.invalidate(nodeRef);
+    }
+
+    @Override
+    public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+        entries.invalidateNowAndAfterCommit(nodeRef);
+    }
+
+    @Override
+    public void beforeDeleteNode(NodeRef nodeRef) {
+        entries.invalidateNowAndAfterCommit(nodeRef);
+    }
+}
@@ -0,0 +1,250 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads discovery.xml from the LOOL server and keeps it fresh in the background.
+ *
+ * The parsed discovery is an immutable WOPIDiscovery snapshot that is swapped in atomically, so lookups never block
+ * and always see either the old or the new document. The document is re-fetched every refreshIntervalSeconds with a
+ * conditional GET (If-None-Match / If-Modified-Since), so an unchanged document costs a 304 and no parsing. While a
+ * refresh is running, or after it fails, the last good snapshot keeps being served. Failed refreshes are retried with
+ * an exponential back off starting at retryMinSeconds and capped at the refresh interval.
+ *
+ * Until the first fetch from the server succeeds, the discovery.xml bundled with the module is served, with its
+ * urlsrc placeholders resolved to bundledUrlSrc, so documents can be opened as soon as the repository is up even if
+ * the LOOL server is slow or down. All fetches use the configured connect and read timeouts.
+ */
+public class WOPILoader {
+    private static final Log logger = LogFactory.getLog(WOPILoader.class);
+
+    private static final long DEFAULT_REFRESH_INTERVAL_SECONDS = 60 * 60;
+    private static final long DEFAULT_RETRY_MIN_SECONDS = 10;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+    private static final String BUNDLED_DISCOVERY_RESOURCE = "/discovery.xml";
+    private static final String BUNDLED_URL_SRC_PLACEHOLDER = "${lool.wopi.url.src}";
+
+    /**
+     * Where the discovery currently being served came from.
+     */
+    public enum Source {
+        /** Nothing has been loaded. */
+        NONE,
+        /** The discovery.xml bundled with the module. */
+        BUNDLED,
+        /** The LOOL server. */
+        SERVER
+    }
+
+    private final URL wopiDiscoveryURL;
+    private long refreshIntervalSeconds = DEFAULT_REFRESH_INTERVAL_SECONDS;
+    private long retryMinSeconds = DEFAULT_RETRY_MIN_SECONDS;
+    private int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+    private String bundledUrlSrc;
+
+    private volatile WOPIDiscovery discovery;
+    private volatile Source source = Source.NONE;
+    private volatile long lastRefreshed;
+    private volatile String lastError;
+
+    // Only touched from the refresher thread
+    private String eTag;
+    private long lastModified;
+    private int consecutiveFailures;
+
+    private ScheduledExecutorService refresher;
+
+    public WOPILoader(URL wopiDiscoveryURL) {
+        this.wopiDiscoveryURL = wopiDiscoveryURL;
+    }
+
+    public void setRefreshIntervalSeconds(long refreshIntervalSeconds) {
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+    }
+
+    public void setRetryMinSeconds(long retryMinSeconds) {
+        this.retryMinSeconds = retryMinSeconds;
+    }
+
+    public void setConnectTimeoutMs(int connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    public void setReadTimeoutMs(int readTimeoutMs) {
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    public void setBundledUrlSrc(String bundledUrlSrc) {
+        this.bundledUrlSrc = bundledUrlSrc;
+    }
+
+    /**
+     * Loads the discovery.xml bundled with the module, unless something has been loaded already. This only reads
+     * from the classpath, so it is safe to call synchronously at startup.
+     */
+    public void loadBundledDiscovery() {
+        if (discovery != null) {
+            return;
+        }
+        try (InputStream inputStream = WOPILoader.class.getResourceAsStream(BUNDLED_DISCOVERY_RESOURCE)) {
+            if (inputStream == null) {
+                logger.warn("No bundled discovery.xml found on the classpath");
+                return;
+            }
+            WOPIDiscovery bundled = WOPIDiscovery.parse(inputStream, urlSrc -> bundledUrlSrc == null ? urlSrc
+                    : urlSrc.replace(BUNDLED_URL_SRC_PLACEHOLDER, bundledUrlSrc));
+            synchronized (this) {
+                // Never replace a discovery fetched from the server in the meantime
+                if (discovery == null) {
+                    discovery = bundled;
+                    source = Source.BUNDLED;
+                }
+            }
+        } catch (IOException | XMLStreamException e) {
+            logger.error("Unable to load the bundled discovery.xml", e);
+        }
+    }
+
+    /**
+     * Starts the background refresher. The first fetch from the server is started straight away.
+     */
+    public void start() {
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WOPIDiscoveryRefresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.execute(this::refresh);
+    }
+
+    public void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Return the src url for a given mimetype from the current discovery snapshot.
+     *
+     * @param mimeType
+     * @param action
+     * @return
+     * @throws IOException if no discovery.xml has been loaded, not even the bundled one
+     */
+    public String getSrcURL(String mimeType, String action) throws IOException {
+        WOPIDiscovery current = discovery;
+        if (current == null) {
+            throw new IOException("discovery.xml hasn't been loaded from the server (" + wopiDiscoveryURL
+                    + ") yet");
+        }
+        return current.getSrcURL(mimeType, action);
+    }
+
+    /**
+     * Returns the time the discovery was last successfully fetched or revalidated, or 0 if it never was.
+     *
+     * @return
+     */
+    public long getLastRefreshed() {
+        return lastRefreshed;
+    }
+
+    /**
+     * Returns whether src URLs can be served.
+     *
+     * @return
+     */
+    public boolean isReady() {
+        return discovery != null;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public URL getDiscoveryURL() {
+        return wopiDiscoveryURL;
+    }
+
+    /**
+     * Returns the reason the last fetch from the server failed, or null if it succeeded.
+     *
+     * @return
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    private void refresh() {
+        long nextRefreshSeconds;
+        try {
+            loadDiscoveryXML();
+            consecutiveFailures = 0;
+            lastError = null;
+            lastRefreshed = System.currentTimeMillis();
+            nextRefreshSeconds = refreshIntervalSeconds;
+        } catch (IOException | RuntimeException e) {
+            consecutiveFailures++;
+            lastError = e.toString();
+            nextRefreshSeconds = Math.min(refreshIntervalSeconds,
+                    retryMinSeconds << Math.min(consecutiveFailures - 1, 20));
+            logger.error("Failed to get discovery.xml file from server (" + wopiDiscoveryURL + "), retrying in "
+                    + nextRefreshSeconds + " seconds", e);
+        }
+        if (!refresher.isShutdown()) {
+            refresher.schedule(this::refresh, nextRefreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Conditionally fetches discovery.xml and, if it changed, streams it straight off the connection into a new
+     * snapshot.
+     *
+     * @throws IOException
+     */
+    private void loadDiscoveryXML() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) wopiDiscoveryURL.openConnection();
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+        if (source == Source.SERVER) {
+            if (eTag != null) {
+                connection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified > 0) {
+                connection.setIfModifiedSince(lastModified);
+            }
+        }
+        int responseCode = connection.getResponseCode();
+        logger.debug("\n--- debug ---\nHttp connection for discovery xml returned with a ["
+                + responseCode + "] response code.\n");
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return;
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected response code " + responseCode + " fetching discovery.xml");
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
+            WOPIDiscovery fetched = WOPIDiscovery.parse(inputStream);
+            synchronized (this) {
+                discovery = fetched;
+                source = Source.SERVER;
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse discovery.xml", e);
+        }
+        eTag = connection.getHeaderField("ETag");
+        lastModified = connection.getLastModified();
+    }
+}
@@ -0,0 +1,334 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * The node local, bounded map with a time to live behind the WOPI caches. An entry is used for at most ttlSeconds.
+ * When the map is full, the stale entries are dropped, and if that doesn't free enough room, an arbitrary tenth of the
+ * rest. Null values are never cached.
+ *
+ * Entries can be invalidated by key, by the node their value was derived from (given a function that tells which
+ * node that is), or all at once, which only marks them stale so it costs nothing however many there are. The keys are
+ * indexed by node, so invalidating a node only touches its own entries. A value loaded while its key or its node was
+ * invalidated (or everything was) isn't cached, so a load racing with a change doesn't put the old state back. The
+ * invalidations are stamped on striped counters, so a load is only rarely turned away by a change to an unrelated
+ * key or node, and the stamps take the same room however many keys there are.
+ * The invalidations made from a policy are made again once the transaction has committed, so a reader that loaded
+ * the node in between doesn't leave the uncommitted state behind.
+ *
+ * @param <K> the key
+ * @param <V> the cached value
+ */
+public class WOPILocalCache<K, V> {
+    private static final int STAMP_STRIPES = 1024;
+
+    private final Function<V, NodeRef> nodeRefOf;
+    private long ttlMs;
+    private int maxItems;
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    // Only updated inside a compute on the node, which is what guards the sets
+    private final ConcurrentMap<NodeRef, Set<K>> keysByNode = new ConcurrentHashMap<>();
+    // Bumped by invalidateAll(); entries put under an older generation are stale
+    private final AtomicLong generation = new AtomicLong();
+    // Every invalidation takes the next number of the sequence, and stamps it on the stripe of its key or node, or
+    // on allInvalidatedAt. A value loaded since a stamp at least as high as the one it started at isn't cached.
+    private final AtomicLong invalidationSequence = new AtomicLong();
+    private final AtomicLongArray keyInvalidatedAt = new AtomicLongArray(STAMP_STRIPES);
+    private final AtomicLongArray nodeInvalidatedAt = new AtomicLongArray(STAMP_STRIPES);
+    private final AtomicLong allInvalidatedAt = new AtomicLong();
+    private final AtomicLong overflowEvictions = new AtomicLong();
+
+    private final TransactionListenerAdapter afterCommitInvalidator = new TransactionListenerAdapter() {
+        @Override
+        public void afterCommit() {
+            PendingInvalidations<K> pending = AlfrescoTransactionSupport.getResource(WOPILocalCache.this);
+            if (pending != null) {
+                pending.keys.forEach(WOPILocalCache.this::invalidate);
+                pending.nodeRefs.forEach(WOPILocalCache.this::invalidateNode);
+                if (pending.all) {
+                    invalidateAll();
+                }
+            }
+        }
+    };
+
+    public WOPILocalCache(long ttlSeconds, int maxItems) {
+        this(ttlSeconds, maxItems, null);
+    }
+
+    /**
+     * @param ttlSeconds
+     * @param maxItems
+     * @param nodeRefOf tells which node a value was derived from, for invalidateNode
+     */
+    public WOPILocalCache(long ttlSeconds, int maxItems, Function<V, NodeRef> nodeRefOf) {
+        this.nodeRefOf = nodeRefOf;
+        setTtlSeconds(ttlSeconds);
+        setMaxItems(maxItems);
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        this.ttlMs = ttlSeconds * 1000;
+    }
+
+    public void setMaxItems(int maxItems) {
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * Returns the cached value, or null if there is none or it is stale.
+     *
+     * @param key
+     * @return
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.staleAt > System.currentTimeMillis() && entry.generation == generation.get()) {
+            return entry.value;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached value, loading it with the given loader if there is none.
+     *
+     * @param key
+     * @param loader
+     * @return
+     */
+    public V get(K key, Function<K, V> loader) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        long loadedAt = invalidationSequence.get();
+        value = loader.apply(key);
+        if (value != null) {
+            put(key, value, loadedAt);
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, invalidationSequence.get());
+    }
+
+    public void remove(K key) {
+        Entry<V> removed = entries.remove(key);
+        if (removed != null) {
+            unindex(key, removed);
+        }
+    }
+
+    public void invalidate(K key) {
+        stamp(keyInvalidatedAt, stripe(key));
+        remove(key);
+    }
+
+    /**
+     * Drops the entries whose value was derived from the given node, whatever their key.
+     *
+     * @param nodeRef
+     */
+    public void invalidateNode(NodeRef nodeRef) {
+        stamp(nodeInvalidatedAt, stripe(nodeRef));
+        keysByNode.computeIfPresent(nodeRef, (node, keys) -> {
+            for (K key : keys) {
+                entries.computeIfPresent(key, (k, entry) -> node.equals(nodeRefOf.apply(entry.value)) ? null : entry);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Makes every entry stale. They are dropped as they are next put or evicted.
+     */
+    public void invalidateAll() {
+        allInvalidatedAt.accumulateAndGet(invalidationSequence.incrementAndGet(), Math::max);
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Like invalidate, and again once the current transaction has committed.
+     *
+     * @param key
+     */
+    public void invalidateNowAndAfterCommit(K key) {
+        invalidate(key);
+        pendingInvalidations().keys.add(key);
+    }
+
+    /**
+     * Like invalidateNode, and again once the current transaction has committed.
+     *
+     * @param nodeRef
+     */
+    public void invalidateNodeNowAndAfterCommit(NodeRef nodeRef) {
+        invalidateNode(nodeRef);
+        pendingInvalidations().nodeRefs.add(nodeRef);
+    }
+
+    /**
+     * Like invalidateAll, and again once the current transaction has committed.
+     */
+    public void invalidateAllNowAndAfterCommit() {
+        invalidateAll();
+        pendingInvalidations().all = true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of entries dropped to make room, not counting stale ones.
+     *
+     * @return
+     */
+    public long getOverflowEvictionCount() {
+        return overflowEvictions.get();
+    }
+
+    private PendingInvalidations<K> pendingInvalidations() {
+        PendingInvalidations<K> pending = AlfrescoTransactionSupport.getResource(this);
+        if (pending == null) {
+            pending = new PendingInvalidations<>();
+            AlfrescoTransactionSupport.bindResource(this, pending);
+            AlfrescoTransactionSupport.bindListener(afterCommitInvalidator);
+        }
+        return pending;
+    }
+
+    /**
+     * Puts the value, unless its key or node was invalidated since the given point of the invalidation sequence.
+     */
+    private void put(K key, V value, long loadedAt) {
+        long now = System.currentTimeMillis();
+        if (entries.size() >= maxItems) {
+            evict(now);
+        }
+        Entry<V> entry = new Entry<>(value, generation.get(), now + ttlMs);
+        if (nodeRefOf == null) {
+            entries.compute(key, (k, existing) -> isInvalidatedSince(key, null, loadedAt) ? existing : entry);
+            return;
+        }
+        // Indexed and put under the lock of the node, so it can't slip in between the steps of invalidateNode, and
+        // checked under the lock of the key, so it can't slip in between the stamp and the removal of invalidate
+        List<Entry<V>> replaced = new ArrayList<>(1);
+        boolean[] cached = new boolean[1];
+        keysByNode.compute(nodeRefOf.apply(value), (node, keys) -> {
+            entries.compute(key, (k, existing) -> {
+                if (isInvalidatedSince(key, node, loadedAt)) {
+                    return existing;
+                }
+                if (existing != null) {
+                    replaced.add(existing);
+                }
+                cached[0] = true;
+                return entry;
+            });
+            if (!cached[0]) {
+                return keys;
+            }
+            Set<K> indexed = keys == null ? new HashSet<>() : keys;
+            indexed.add(key);
+            return indexed;
+        });
+        for (Entry<V> existing : replaced) {
+            unindex(key, existing);
+        }
+    }
+
+    private boolean isInvalidatedSince(K key, NodeRef nodeRef, long loadedAt) {
+        return keyInvalidatedAt.get(stripe(key)) > loadedAt
+                || (nodeRef != null && nodeInvalidatedAt.get(stripe(nodeRef)) > loadedAt)
+                || allInvalidatedAt.get() > loadedAt;
+    }
+
+    private void stamp(AtomicLongArray stamps, int stripe) {
+        stamps.accumulateAndGet(stripe, invalidationSequence.incrementAndGet(), Math::max);
+    }
+
+    private static int stripe(Object keyOrNode) {
+        return (keyOrNode.hashCode() & 0x7fffffff) % STAMP_STRIPES;
+    }
+
+    /**
+     * Drops the key from the index of the node of the entry removed, unless it has since been put again for that node.
+     */
+    private void unindex(K key, Entry<V> removed) {
+        if (nodeRefOf == null) {
+            return;
+        }
+        keysByNode.computeIfPresent(nodeRefOf.apply(removed.value), (node, keys) -> {
+            Entry<V> current = entries.get(key);
+            if (current == null || !node.equals(nodeRefOf.apply(current.value))) {
+                keys.remove(key);
+            }
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private void evict(long now) {
+        long currentGeneration = generation.get();
+        for (Map.Entry<K, Entry<V>> mapping : entries.entrySet()) {
+            Entry<V> entry = mapping.getValue();
+            if (entry.staleAt <= now || entry.generation != currentGeneration) {
+                removeEntry(mapping.getKey(), entry);
+            }
+        }
+        int toEvict = entries.size() - maxItems + Math.max(1, maxItems / 10);
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (toEvict > 0 && iterator.hasNext()) {
+            Map.Entry<K, Entry<V>> mapping = iterator.next();
+            if (removeEntry(mapping.getKey(), mapping.getValue())) {
+                toEvict--;
+                overflowEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean removeEntry(K key, Entry<V> entry) {
+        if (!entries.remove(key, entry)) {
+            return false;
+        }
+        unindex(key, entry);
+        return true;
+    }
+
+    /**
+     * The invalidations to make again once the transaction has committed.
+     */
+    private static final class PendingInvalidations<K> {
+        private final Set<K> keys = new HashSet<>();
+        private final Set<NodeRef> nodeRefs = new HashSet<>();
+        private boolean all;
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long generation;
+        private final long staleAt;
+
+        private Entry(V value, long generation, long staleAt) {
+            this.value = value;
+            this.generation = generation;
+            this.staleAt = staleAt;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package dk.magenta.libreoffice.online.service;
+
+/**
+ * Outcome of a WOPI lock operation. When the operation conflicts with the current lock, the current lock id is
+ * returned so it can be sent back to the LOOL server in the X-WOPI-Lock header.
+ */
+public class WOPILockResult {
+    private final boolean success;
+    private final String currentLock;
+    private final String failureReason;
+
+    private WOPILockResult(boolean success, String currentLock, String failureReason) {
+        this.success = success;
+        this.currentLock = currentLock;
+        this.failureReason = failureReason;
+    }
+
+    public static WOPILockResult success(String currentLock) {
+        return new WOPILockResult(true, currentLock, null);
+    }
+
+    public static WOPILockResult conflict(String currentLock, String failureReason) {
+        return new WOPILockResult(false, currentLock != null ? currentLock : "", failureReason);
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Returns the lock id the file is locked with after the operation, or an empty string if it isn't locked.
+     * @return
+     */
+    public String getCurrentLock() {
+        return currentLock;
+    }
+
+    public String getFailureReason() {
+        return failureReason;
+    }
+}
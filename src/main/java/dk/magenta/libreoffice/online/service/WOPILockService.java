@@ -0,0 +1,56 @@
+package dk.magenta.libreoffice.online.service;
+
+/**
+ * WOPI file locks (Lock, Unlock, RefreshLock, GetLock and UnlockAndRelock).
+ * See https://wopi.readthedocs.io/projects/wopirest/en/latest/files/Lock.html
+ *
+ * Lock ids are opaque strings chosen by the LOOL server. A lock that isn't refreshed expires after the lock
+ * time-to-live (30 minutes per the WOPI spec).
+ */
+public interface WOPILockService {
+
+    /**
+     * Locks the file, or refreshes the lock if the file is already locked with the same lock id.
+     *
+     * @param fileId
+     * @param lockId
+     * @return
+     */
+    WOPILockResult lock(String fileId, String lockId);
+
+    /**
+     * Refreshes the lock on the file if it is locked with the given lock id.
+     *
+     * @param fileId
+     * @param lockId
+     * @return
+     */
+    WOPILockResult refreshLock(String fileId, String lockId);
+
+    /**
+     * Unlocks the file if it is locked with the given lock id.
+     *
+     * @param fileId
+     * @param lockId
+     * @return
+     */
+    WOPILockResult unlock(String fileId, String lockId);
+
+    /**
+     * Replaces the lock on the file with a new one, if it is currently locked with the old lock id.
+     *
+     * @param fileId
+     * @param oldLockId
+     * @param newLockId
+     * @return
+     */
+    WOPILockResult unlockAndRelock(String fileId, String oldLockId, String newLockId);
+
+    /**
+     * Returns the current lock id of the file, or an empty string if the file isn't locked.
+     *
+     * @param fileId
+     * @return
+     */
+    String getLock(String fileId);
+}
@@ -0,0 +1,314 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.repo.lock.mem.Lifetime;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.lock.LockService;
+import org.alfresco.service.cmr.lock.LockType;
+import org.alfresco.service.cmr.lock.UnableToAquireLockException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the WOPI locks in a concurrent in-memory lock table, keyed by file id. Every operation on a file is an atomic
+ * compute on its entry, so concurrent lock requests for the same file are serialised without any global lock.
+ *
+ * The lock table is the source of truth for the WOPI protocol. When a file is first locked it is also given an
+ * ephemeral Alfresco write lock, so it can't be edited elsewhere in Alfresco while it is open in LOOL. Refreshing or
+ * re-locking doesn't touch the Alfresco lock; it is released when the WOPI lock is unlocked or expires. The Alfresco
+ * lock is given a long expiry (alfrescoLockTimeoutSeconds) as a safety net should the release ever be missed.
+ *
+ * Expired WOPI locks are treated as absent straight away, and removed from the table by a periodic sweep.
+ *
+ * The lock table is local to this node. Only the Alfresco lock is seen by the rest of a cluster, so all the WOPI calls
+ * for a file must reach the same node, e.g. with a load balancer that is sticky on the fileId. Running with the
+ * clustered token store, whose point is that they needn't, is warned about on startup.
+ */
+public class WOPILockServiceImpl implements WOPILockService {
+    private static final Log logger = LogFactory.getLog(WOPILockServiceImpl.class);
+
+    private static final String ALFRESCO_LOCK_INFO = "LibreOffice Online";
+    private static final String CLUSTERED_TOKEN_STORE = "clustered";
+
+    private LOOLService loolService;
+    private LockService lockService;
+    private RetryingTransactionHelper retryingTransactionHelper;
+    private long lockTtlMs;
+    private int alfrescoLockTimeoutSeconds;
+    private long sweepIntervalSeconds;
+    private String tokenStore;
+
+    private final ConcurrentMap<String, FileLock> locks = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sweeper;
+
+    //<editor-fold desc="Bean setters">
+    public void setLoolService(LOOLService loolService) {
+        this.loolService = loolService;
+    }
+
+    public void setLockService(LockService lockService) {
+        this.lockService = lockService;
+    }
+
+    public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
+        this.retryingTransactionHelper = retryingTransactionHelper;
+    }
+
+    public void setLockTtlSeconds(long lockTtlSeconds) {
+        this.lockTtlMs = lockTtlSeconds * 1000;
+    }
+
+    public void setAlfrescoLockTimeoutSeconds(int alfrescoLockTimeoutSeconds) {
+        this.alfrescoLockTimeoutSeconds = alfrescoLockTimeoutSeconds;
+    }
+
+    public void setSweepIntervalSeconds(long sweepIntervalSeconds) {
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    /**
+     * The lool.wopi.token.store in use, see the class comment.
+     */
+    public void setTokenStore(String tokenStore) {
+        this.tokenStore = tokenStore;
+    }
+    //</editor-fold>
+
+    public void init() {
+        if (CLUSTERED_TOKEN_STORE.equals(tokenStore)) {
+            logger.warn("WOPI locks are held on each node separately. With the clustered token store, all WOPI "
+                    + "requests for a file must still be routed to the same node, or lock checks will be wrong");
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WOPILockSweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweepSafely, sweepIntervalSeconds, sweepIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    public void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    @Override
+    public WOPILockResult lock(String fileId, String lockId) {
+        final long now = System.currentTimeMillis();
+        final FileLock[] taken = new FileLock[1];
+        final String[] conflict = new String[1];
+        locks.compute(fileId, (key, current) -> {
+            if (current == null) {
+                taken[0] = new FileLock(lockId, now + lockTtlMs);
+                return taken[0];
+            }
+            if (current.isExpired(now)) {
+                // Re-use the expired entry, and with it any Alfresco lock it holds or is being given
+                current.lockId = lockId;
+                current.expiresAt = now + lockTtlMs;
+                taken[0] = current;
+            } else if (current.lockId.equals(lockId)) {
+                current.expiresAt = now + lockTtlMs;
+            } else {
+                conflict[0] = current.lockId;
+            }
+            return current;
+        });
+        if (conflict[0] != null) {
+            return WOPILockResult.conflict(conflict[0], "File is locked by another session");
+        }
+        if (taken[0] != null && taken[0].acquireClaimed.compareAndSet(false, true)) {
+            return acquireAlfrescoLock(fileId, taken[0]);
+        }
+        return WOPILockResult.success(lockId);
+    }
+
+    @Override
+    public WOPILockResult refreshLock(String fileId, String lockId) {
+        final long now = System.currentTimeMillis();
+        final String[] conflict = new String[1];
+        locks.compute(fileId, (key, current) -> {
+            if (current == null || current.isExpired(now)) {
+                conflict[0] = "";
+            } else if (current.lockId.equals(lockId)) {
+                current.expiresAt = now + lockTtlMs;
+            } else {
+                conflict[0] = current.lockId;
+            }
+            return current;
+        });
+        if (conflict[0] != null) {
+            return WOPILockResult.conflict(conflict[0], conflict[0].isEmpty() ? "File is not locked"
+                    : "File is locked by another session");
+        }
+        return WOPILockResult.success(lockId);
+    }
+
+    @Override
+    public WOPILockResult unlock(String fileId, String lockId) {
+        final long now = System.currentTimeMillis();
+        final FileLock[] released = new FileLock[1];
+        final String[] conflict = new String[1];
+        locks.compute(fileId, (key, current) -> {
+            if (current == null || current.isExpired(now)) {
+                conflict[0] = "";
+                return current;
+            }
+            if (current.lockId.equals(lockId)) {
+                released[0] = current;
+                return null;
+            }
+            conflict[0] = current.lockId;
+            return current;
+        });
+        if (conflict[0] != null) {
+            return WOPILockResult.conflict(conflict[0], conflict[0].isEmpty() ? "File is not locked"
+                    : "File is locked by another session");
+        }
+        if (released[0].claimRelease()) {
+            releaseAlfrescoLock(fileId);
+        }
+        return WOPILockResult.success("");
+    }
+
+    @Override
+    public WOPILockResult unlockAndRelock(String fileId, String oldLockId, String newLockId) {
+        final long now = System.currentTimeMillis();
+        final String[] conflict = new String[1];
+        locks.compute(fileId, (key, current) -> {
+            if (current == null || current.isExpired(now)) {
+                conflict[0] = "";
+            } else if (current.lockId.equals(oldLockId)) {
+                current.lockId = newLockId;
+                current.expiresAt = now + lockTtlMs;
+            } else {
+                conflict[0] = current.lockId;
+            }
+            return current;
+        });
+        if (conflict[0] != null) {
+            return WOPILockResult.conflict(conflict[0], conflict[0].isEmpty() ? "File is not locked"
+                    : "File is locked by another session");
+        }
+        return WOPILockResult.success(newLockId);
+    }
+
+    @Override
+    public String getLock(String fileId) {
+        FileLock current = locks.get(fileId);
+        if (current == null || current.isExpired(System.currentTimeMillis())) {
+            return "";
+        }
+        return current.lockId;
+    }
+
+    /**
+     * Takes the Alfresco lock for a newly taken WOPI lock, as the current (token) user. The lock is taken in a
+     * transaction of its own, so a failure to take it doesn't mark the transaction of the request for rollback.
+     * If it can't be taken for any reason, the WOPI lock is given up again.
+     */
+    private WOPILockResult acquireAlfrescoLock(String fileId, FileLock fileLock) {
+        NodeRef nodeRef = loolService.getNodeRefForFileId(fileId);
+        try {
+            retryingTransactionHelper.doInTransaction(() -> {
+                lockService.lock(nodeRef, LockType.WRITE_LOCK, alfrescoLockTimeoutSeconds, Lifetime.EPHEMERAL,
+                        ALFRESCO_LOCK_INFO);
+                return null;
+            }, false, true);
+        } catch (UnableToAquireLockException e) {
+            // Locked in Alfresco by someone else, e.g. checked out in Share
+            locks.remove(fileId, fileLock);
+            return WOPILockResult.conflict("", "File is locked in Alfresco");
+        } catch (RuntimeException e) {
+            locks.remove(fileId, fileLock);
+            throw e;
+        }
+        fileLock.alfrescoLocked = true;
+        if (locks.get(fileId) != fileLock && fileLock.claimRelease()) {
+            // Unlocked or swept while the Alfresco lock was being taken
+            releaseAlfrescoLock(fileId);
+        }
+        return WOPILockResult.success(fileLock.lockId);
+    }
+
+    /**
+     * Releases the Alfresco lock as the system user, since the user unlocking isn't necessarily the one who locked.
+     */
+    private void releaseAlfrescoLock(String fileId) {
+        NodeRef nodeRef = loolService.getNodeRefForFileId(fileId);
+        try {
+            AuthenticationUtil.runAsSystem(() -> retryingTransactionHelper.doInTransaction(() -> {
+                lockService.unlock(nodeRef);
+                return null;
+            }, false, false));
+        } catch (RuntimeException e) {
+            logger.warn("Unable to release the Alfresco lock on " + nodeRef + ": " + e.getMessage());
+        }
+    }
+
+    void sweep() {
+        final long now = System.currentTimeMillis();
+        for (String fileId : locks.keySet()) {
+            final FileLock[] expired = new FileLock[1];
+            locks.computeIfPresent(fileId, (key, current) -> {
+                if (current.isExpired(now)) {
+                    expired[0] = current;
+                    return null;
+                }
+                return current;
+            });
+            if (expired[0] != null && expired[0].claimRelease()) {
+                releaseAlfrescoLock(fileId);
+            }
+        }
+    }
+
+    private void sweepSafely() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the scheduled sweep
+            logger.error("Failed to sweep expired WOPI locks", e);
+        }
+    }
+
+    /**
+     * An entry of the lock table. The lock id and expiry are only ever changed inside a compute on its key.
+     */
+    private static final class FileLock {
+        private volatile String lockId;
+        private volatile long expiresAt;
+        private volatile boolean alfrescoLocked;
+        // Only one thread takes the Alfresco lock of an entry, and only one releases it
+        private final AtomicBoolean acquireClaimed = new AtomicBoolean();
+        private final AtomicBoolean releaseClaimed = new AtomicBoolean();
+
+        private FileLock(String lockId, long expiresAt) {
+            this.lockId = lockId;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+
+        /**
+         * Whether the caller is the one to release the Alfresco lock of this entry, once it has left the table. The
+         * thread taking the Alfresco lock and the one removing the entry can both see it held, only one of them may
+         * release it.
+         */
+        private boolean claimRelease() {
+            return alfrescoLocked && releaseClaimed.compareAndSet(false, true);
+        }
+    }
+}
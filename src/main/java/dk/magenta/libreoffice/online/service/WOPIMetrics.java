@@ -0,0 +1,177 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.MBeanExporter;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request and transfer metrics of the WOPI webscripts, published over JMX (one MBean per endpoint plus one for the
+ * service) and by the /lool/metrics webscript in the Prometheus text format.
+ *
+ * Everything is recorded into LongAdders, so it is cheap enough to be left on in production.
+ */
+public class WOPIMetrics implements WOPIServiceMetrics {
+    private static final Log logger = LogFactory.getLog(WOPIMetrics.class);
+
+    private static final String OBJECT_NAME_DOMAIN = "dk.magenta.libreoffice.online";
+
+    /**
+     * The instrumented endpoints.
+     */
+    public enum Endpoint {
+        GET_TOKEN("GetToken"),
+        GET_TOKENS("GetTokens"),
+        CHECK_FILE_INFO("CheckFileInfo"),
+        GET_FILE("GetFile"),
+        PUT_FILE("PutFile"),
+        LOCK("Lock");
+
+        private final String displayName;
+
+        Endpoint(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private LOOLService loolService;
+    private WOPIAccessTokenStore accessTokenStore;
+    private MBeanExporter mbeanExporter;
+
+    private final Map<Endpoint, WOPIEndpointTimer> timers = new EnumMap<>(Endpoint.class);
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder transactionRetries = new LongAdder();
+    private final LongAdder autosaveFailures = new LongAdder();
+    private final LongAdder contentCacheHits = new LongAdder();
+    private final LongAdder contentCacheMisses = new LongAdder();
+
+    public WOPIMetrics() {
+        for (Endpoint endpoint : Endpoint.values()) {
+            timers.put(endpoint, new WOPIEndpointTimer(endpoint.getDisplayName()));
+        }
+    }
+
+    //<editor-fold desc="Bean setters">
+    public void setLoolService(LOOLService loolService) {
+        this.loolService = loolService;
+    }
+
+    public void setAccessTokenStore(WOPIAccessTokenStore accessTokenStore) {
+        this.accessTokenStore = accessTokenStore;
+    }
+
+    public void setMbeanExporter(MBeanExporter mbeanExporter) {
+        this.mbeanExporter = mbeanExporter;
+    }
+    //</editor-fold>
+
+    public void init() {
+        if (mbeanExporter == null) {
+            return;
+        }
+        try {
+            mbeanExporter.registerManagedResource(this,
+                    new ObjectName(OBJECT_NAME_DOMAIN + ":type=WOPIService"));
+            for (WOPIEndpointTimer timer : timers.values()) {
+                mbeanExporter.registerManagedResource(timer,
+                        new ObjectName(OBJECT_NAME_DOMAIN + ":type=WOPIEndpoint,name=" + timer.getName()));
+            }
+        } catch (MalformedObjectNameException | RuntimeException e) {
+            // Metrics are nice to have, so don't stop the repository from starting over them
+            logger.error("Unable to register the WOPI metrics MBeans", e);
+        }
+    }
+
+    /**
+     * Records a request served by the given endpoint.
+     *
+     * @param endpoint
+     * @param startNanos the System.nanoTime() at which the request started
+     * @param failed whether the request failed with a server error (5xx), rather than being answered or refused
+     */
+    public void recordRequest(Endpoint endpoint, long startNanos, boolean failed) {
+        timers.get(endpoint).record(System.nanoTime() - startNanos, failed);
+    }
+
+    public void recordBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void recordBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void recordTransactionRetry() {
+        transactionRetries.increment();
+    }
+
+    public void recordAutosaveFailure() {
+        autosaveFailures.increment();
+    }
+
+    public void recordContentCacheHit() {
+        contentCacheHits.increment();
+    }
+
+    public void recordContentCacheMiss() {
+        contentCacheMisses.increment();
+    }
+
+    public WOPIEndpointTimer getTimer(Endpoint endpoint) {
+        return timers.get(endpoint);
+    }
+
+    //<editor-fold desc="Metrics">
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getTransactionRetryCount() {
+        return transactionRetries.sum();
+    }
+
+    @Override
+    public long getAutosaveFailureCount() {
+        return autosaveFailures.sum();
+    }
+
+    @Override
+    public long getContentCacheHitCount() {
+        return contentCacheHits.sum();
+    }
+
+    @Override
+    public long getContentCacheMissCount() {
+        return contentCacheMisses.sum();
+    }
+
+    @Override
+    public int getAccessTokenCount() {
+        // The signed store doesn't hold the tokens it issues
+        return accessTokenStore instanceof SignedWOPIAccessTokenStore ? -1 : accessTokenStore.size();
+    }
+
+    @Override
+    public long getDiscoveryAgeSeconds() {
+        long lastRefreshed = loolService.getWopiLoader().getLastRefreshed();
+        return lastRefreshed == 0 ? -1 : (System.currentTimeMillis() - lastRefreshed) / 1000;
+    }
+    //</editor-fold>
+}
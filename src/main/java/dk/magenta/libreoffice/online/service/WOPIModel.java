@@ -0,0 +1,14 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.service.namespace.QName;
+
+/**
+ * QNames of the module's content model, see model/content-model.xml.
+ */
+public interface WOPIModel {
+    String LOOL_MODEL_URI = "http://www.magenta.dk/model/lool/1.0";
+
+    QName ASPECT_CONTENT_DIGEST = QName.createQName(LOOL_MODEL_URI, "contentDigest");
+    QName PROP_DIGEST = QName.createQName(LOOL_MODEL_URI, "digest");
+    QName PROP_DIGEST_CONTENT_URL = QName.createQName(LOOL_MODEL_URI, "digestContentUrl");
+}
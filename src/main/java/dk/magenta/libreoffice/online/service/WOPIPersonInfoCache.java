@@ -0,0 +1,109 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Node local cache of the people WOPI requests are made as, keyed by user name. A person is resolved with one
+ * person lookup and one getProperties call, after which the PutFile user check and the CheckFileInfo friendly name
+ * cost a map lookup.
+ *
+ * Like the WOPIFileInfoCache, an entry is dropped as soon as its person node is updated or deleted, and again once
+ * that transaction has committed. Entries are matched on the person node rather than on the user name, so an entry
+ * is also dropped if the update changes the user name. In a cluster an entry is never used for more than ttlSeconds.
+ * People that don't exist are not cached.
+ */
+public class WOPIPersonInfoCache implements NodeServicePolicies.OnUpdatePropertiesPolicy,
+        NodeServicePolicies.BeforeDeleteNodePolicy {
+    private static final long DEFAULT_TTL_SECONDS = 300;
+    private static final int DEFAULT_MAX_ITEMS = 5000;
+
+    private PolicyComponent policyComponent;
+    private PersonService personService;
+    private NodeService nodeService;
+
+    private final WOPILocalCache<String, PersonInfo> entries =
+            new WOPILocalCache<>(DEFAULT_TTL_SECONDS, DEFAULT_MAX_ITEMS, PersonInfo::getNodeRef);
+
+    //<editor-fold desc="Bean setters">
+    public void setPolicyComponent(PolicyComponent policyComponent) {
+        this.policyComponent = policyComponent;
+    }
+
+    public void setPersonService(PersonService personService) {
+        this.personService = personService;
+    }
+
+    public void setNodeService(NodeService nodeService) {
+        this.nodeService = nodeService;
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        entries.setTtlSeconds(ttlSeconds);
+    }
+
+    public void setMaxItems(int maxItems) {
+        entries.setMaxItems(maxItems);
+    }
+    //</editor-fold>
+
+    public void init() {
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME,
+                ContentModel.TYPE_PERSON,
+                new JavaBehaviour(this, "onUpdateProperties", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME,
+                ContentModel.TYPE_PERSON,
+                new JavaBehaviour(this, "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * Returns the person with the given user name, or null if there is no such person. Must be called inside a
+     * transaction.
+     *
+     * @param userName
+     * @return
+     */
+    public PersonInfo get(String userName) {
+        return entries.get(userName, this::load);
+    }
+
+    /**
+     * Drops the entry of the given person node, whatever user name it is cached under.
+     *
+     * @param personRef
+     */
+    public void invalidate(NodeRef personRef) {
+        entries.invalidateNode(personRef);
+    }
+
+    @Override
+    public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+        entries.invalidateNodeNowAndAfterCommit(nodeRef);
+    }
+
+    @Override
+    public void beforeDeleteNode(NodeRef nodeRef) {
+        entries.invalidateNodeNowAndAfterCommit(nodeRef);
+    }
+
+    private PersonInfo load(String userName) {
+        NodeRef personRef = personService.getPersonOrNull(userName);
+        if (personRef == null) {
+            return null;
+        }
+        Map<QName, Serializable> properties = nodeService.getProperties(personRef);
+        return new PersonInfo(personRef, (String) properties.get(ContentModel.PROP_USERNAME),
+                (String) properties.get(ContentModel.PROP_FIRSTNAME),
+                (String) properties.get(ContentModel.PROP_LASTNAME));
+    }
+}
@@ -0,0 +1,214 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.version.common.VersionUtil;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.MimetypeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the side effects of a PutFile that LOOL doesn't need to wait for: sniffing the mimetype and encoding of the
+ * new content, which means reading it back, and logging the save. PutFile keeps the mimetype and encoding the document
+ * already had and schedules this to run once its transaction has committed.
+ *
+ * Only the mimetype and encoding of the content property are changed; the content itself isn't written again. The
+ * versionable and auditable behaviours are disabled for that change, so it neither creates a version of its own nor
+ * moves the modification date away from the LastModifiedTime PutFile gave LOOL. The version the save created still
+ * holds the mimetype and encoding the document had before, so they are corrected on that version as well, provided it
+ * is still the current version and holds the same content.
+ *
+ * The work is done by a bounded pool of threads with a bounded queue. When the queue is full the save is still made,
+ * only its mimetype and encoding aren't re-checked; they are those the document had before.
+ */
+public class WOPIPostSaveProcessor {
+    private static final Log logger = LogFactory.getLog(WOPIPostSaveProcessor.class);
+
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private NodeService nodeService;
+    private ContentService contentService;
+    private MimetypeService mimetypeService;
+    private VersionService versionService;
+    private BehaviourFilter behaviourFilter;
+    private RetryingTransactionHelper retryingTransactionHelper;
+    private int threads = DEFAULT_THREADS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private ThreadPoolExecutor executor;
+
+    //<editor-fold desc="Bean setters">
+    public void setNodeService(NodeService nodeService) {
+        this.nodeService = nodeService;
+    }
+
+    public void setContentService(ContentService contentService) {
+        this.contentService = contentService;
+    }
+
+    public void setMimetypeService(MimetypeService mimetypeService) {
+        this.mimetypeService = mimetypeService;
+    }
+
+    public void setVersionService(VersionService versionService) {
+        this.versionService = versionService;
+    }
+
+    public void setBehaviourFilter(BehaviourFilter behaviourFilter) {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+    public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
+        this.retryingTransactionHelper = retryingTransactionHelper;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+    //</editor-fold>
+
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "WOPIPostSave-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Schedules the post save processing of the node to run once the current transaction has committed.
+     *
+     * @param nodeRef
+     * @param tokenInfo the token the content was saved with
+     */
+    public void scheduleAfterCommit(final NodeRef nodeRef, final WOPIAccessTokenInfo tokenInfo) {
+        AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    executor.execute(() -> process(nodeRef, tokenInfo));
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Post save queue full, skipping mimetype and encoding detection for " + nodeRef);
+                }
+            }
+        });
+    }
+
+    private void process(NodeRef nodeRef, WOPIAccessTokenInfo tokenInfo) {
+        try {
+            AuthenticationUtil.runAs(() -> retryingTransactionHelper.doInTransaction(() -> {
+                if (nodeService.exists(nodeRef)) {
+                    updateMimetypeAndEncoding(nodeRef);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Post save processing done for " + nodeRef + ", saved by "
+                                + tokenInfo.getUserName());
+                    }
+                }
+                return null;
+            }, false, true), tokenInfo.getUserName());
+        } catch (RuntimeException e) {
+            logger.error("Post save processing failed for " + nodeRef, e);
+        }
+    }
+
+    /**
+     * Sniffs the mimetype and encoding of the current content, and only sets the content property, of the node and of
+     * its current version, if either of them changed.
+     */
+    private void updateMimetypeAndEncoding(NodeRef nodeRef) throws IOException {
+        ContentData contentData = (ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+        if (contentData == null || contentData.getSize() == 0) {
+            return;
+        }
+        String name = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+        String mimetype = mimetypeService.guessMimetype(name,
+                contentService.getReader(nodeRef, ContentModel.PROP_CONTENT));
+
+        String encoding;
+        ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+        try (InputStream inputStream = new BufferedInputStream(reader.getContentInputStream())) {
+            Charset charset = mimetypeService.getContentCharsetFinder().getCharset(inputStream, mimetype);
+            encoding = charset.name();
+        }
+
+        if (!mimetype.equals(contentData.getMimetype()) || !encoding.equals(contentData.getEncoding())) {
+            ContentData updated = ContentData.setEncoding(ContentData.setMimetype(contentData, mimetype), encoding);
+            behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+            behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+            try {
+                nodeService.setProperty(nodeRef, ContentModel.PROP_CONTENT, updated);
+            } finally {
+                behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+                behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+            }
+            updateCurrentVersion(nodeRef, updated);
+        }
+    }
+
+    /**
+     * Sets the content property of the current version of the node to the given one, if that version holds the same
+     * content; a version made from other content, e.g. by a later save, is left as it is. The version store is only
+     * writable by the system.
+     */
+    private void updateCurrentVersion(NodeRef nodeRef, ContentData updated) {
+        if (!nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)) {
+            return;
+        }
+        Version version = versionService.getCurrentVersion(nodeRef);
+        if (version == null) {
+            return;
+        }
+        final NodeRef versionNodeRef = VersionUtil.convertNodeRef(version.getFrozenStateNodeRef());
+        AuthenticationUtil.runAsSystem(() -> {
+            ContentData versionContentData = (ContentData) nodeService.getProperty(versionNodeRef,
+                    ContentModel.PROP_CONTENT);
+            if (versionContentData == null || versionContentData.getContentUrl() == null
+                    || !versionContentData.getContentUrl().equals(updated.getContentUrl())) {
+                return null;
+            }
+            behaviourFilter.disableBehaviour(versionNodeRef, ContentModel.ASPECT_VERSIONABLE);
+            behaviourFilter.disableBehaviour(versionNodeRef, ContentModel.ASPECT_AUDITABLE);
+            try {
+                nodeService.setProperty(versionNodeRef, ContentModel.PROP_CONTENT, updated);
+            } finally {
+                behaviourFilter.enableBehaviour(versionNodeRef, ContentModel.ASPECT_AUDITABLE);
+                behaviourFilter.enableBehaviour(versionNodeRef, ContentModel.ASPECT_VERSIONABLE);
+            }
+            return null;
+        });
+    }
+}
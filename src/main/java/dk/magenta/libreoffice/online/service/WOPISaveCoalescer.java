@@ -0,0 +1,347 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces the autosaves LOOL makes of a document. An autosave isn't written straight away but parked in a pending
+ * slot for its file; an autosave arriving while one is pending replaces it, and whatever is pending windowSeconds
+ * after the first one arrived is written. A save that isn't an autosave (an explicit save, or the save made when the
+ * document is closed) discards the pending autosave, which it supersedes, and is written straight away.
+ *
+ * The saves of a file are written one at a time, so a pending autosave can never be written after a later save of the
+ * same file. The striped locks only guard the pending slots and the files being written; no content is written while
+ * holding one, so a slow write only holds up the saves of its own file. Pending autosaves are written by a pool of
+ * flushThreads threads.
+ *
+ * Coalescing trades durability for fewer writes. A parked autosave is acknowledged with the LastModifiedTime the file
+ * had before it, and is lost if this node stops before the window is up. A pending autosave that fails to be written
+ * is counted in the WOPIMetrics and logged, and the file is marked as failed. While a file is marked as failed, or one
+ * of its saves is being written, its autosaves aren't parked but written straight away, so LOOL sees the outcome; the
+ * mark is cleared once a save of the file is written again.
+ *
+ * LOOL sends back the LastModifiedTime it was answered with, to check that nobody else changed the file since. The
+ * last autosave of each file written here is remembered, with the access token it came with and the time it was
+ * acknowledged with, so the save that follows isn't taken for somebody else's change; see isCoalescedWrite.
+ *
+ * The pending slots are held on this node only, so coalescing must only be enabled when all the WOPI requests for a
+ * file reach the same node. It is off unless enabled, and a window of 0 or less disables it too.
+ */
+public class WOPISaveCoalescer {
+    private static final Log logger = LogFactory.getLog(WOPISaveCoalescer.class);
+
+    private static final int LOCK_STRIPES = 64;
+    private static final int DEFAULT_FLUSH_THREADS = 2;
+    private static final long SHUTDOWN_WAIT_SECONDS = 30;
+
+    /**
+     * Writes the content of a save.
+     */
+    public interface SaveWriter {
+        /**
+         * @param content
+         * @return the modification date of the file after the write
+         */
+        Date write(File content);
+    }
+
+    private WOPIMetrics wopiMetrics;
+    private boolean enabled;
+    private long windowSeconds;
+    private int flushThreads = DEFAULT_FLUSH_THREADS;
+
+    private final ConcurrentMap<String, PendingSave> pendingSaves = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CoalescedWrite> coalescedWrites = new ConcurrentHashMap<>();
+    private final Set<String> failedFiles = ConcurrentHashMap.newKeySet();
+    /**
+     * Files a save is being written to or checked against, one at a time. Guarded by the lock of the file, which is
+     * notified when a write or check ends.
+     */
+    private final Set<String> busyFiles = ConcurrentHashMap.newKeySet();
+    /** The busy files a save is being written to, rather than checked against. */
+    private final Set<String> writingFiles = ConcurrentHashMap.newKeySet();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private ScheduledThreadPoolExecutor flusher;
+
+    public WOPISaveCoalescer() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    //<editor-fold desc="Bean setters">
+    public void setWopiMetrics(WOPIMetrics wopiMetrics) {
+        this.wopiMetrics = wopiMetrics;
+    }
+
+    /**
+     * Only enable when all the WOPI requests for a file reach this node, e.g. a single node or sticky sessions.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setWindowSeconds(long windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    public void setFlushThreads(int flushThreads) {
+        this.flushThreads = flushThreads;
+    }
+    //</editor-fold>
+
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        flusher = new ScheduledThreadPoolExecutor(flushThreads, r -> {
+            Thread thread = new Thread(r, "WOPISaveCoalescer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // destroy() writes whatever is pending itself rather than waiting for the windows to end
+        flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Waits for the autosaves being written, and writes whatever is still pending, so no autosave is lost on
+     * shutdown.
+     */
+    public void destroy() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (String fileId : pendingSaves.keySet()) {
+            flush(fileId);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled && windowSeconds > 0;
+    }
+
+    /**
+     * Parks an autosave in the pending slot of its file, replacing any autosave already pending. The content file is
+     * handed over, and deleted once it has been written or replaced. An autosave of a file whose last pending autosave
+     * failed to be written, or with a save being written, isn't parked; the content file is then left to the caller,
+     * to write it with writeNow.
+     *
+     * @param fileId
+     * @param accessToken the access token the autosave came with
+     * @param content
+     * @param writer
+     * @param lastModified reads the modification date of the file, while none of its saves is being written
+     * @return the modification date the file has until the autosave is written, to acknowledge the autosave with, or
+     * null if it wasn't parked
+     */
+    public Date defer(String fileId, String accessToken, File content, SaveWriter writer,
+                      Supplier<Date> lastModified) {
+        synchronized (lock(fileId)) {
+            if (failedFiles.contains(fileId) || writingFiles.contains(fileId)) {
+                return null;
+            }
+            Date acknowledged = lastModified.get();
+            PendingSave replaced = pendingSaves.put(fileId,
+                    new PendingSave(accessToken, acknowledged, content, writer));
+            if (replaced == null) {
+                flusher.schedule(() -> flush(fileId), windowSeconds, TimeUnit.SECONDS);
+            } else {
+                delete(replaced.content);
+            }
+            return acknowledged;
+        }
+    }
+
+    /**
+     * Writes a save straight away, discarding the autosave pending for the file, if any. The content file is left to
+     * the caller.
+     *
+     * @param fileId
+     * @param content
+     * @param writer
+     */
+    public void writeNow(String fileId, File content, SaveWriter writer) {
+        synchronized (lock(fileId)) {
+            PendingSave superseded = pendingSaves.remove(fileId);
+            if (superseded != null) {
+                delete(superseded.content);
+            }
+            startWork(fileId, true);
+        }
+        boolean written = false;
+        try {
+            writer.write(content);
+            coalescedWrites.remove(fileId);
+            written = true;
+        } finally {
+            endWork(fileId, written);
+        }
+    }
+
+    /**
+     * Returns whether the file was last written with an autosave coalesced here, which came with the given access
+     * token and was acknowledged with the given modification date. LOOL was never told the modification date the
+     * write left the file with, so the next save with the token still carries the acknowledged one. Autosaves
+     * coalesced for other tokens, or any other write, don't count.
+     *
+     * @param fileId
+     * @param accessToken
+     * @param acknowledged the modification date the save carries
+     * @param modified the modification date of the file
+     * @return
+     */
+    public boolean isCoalescedWrite(String fileId, String accessToken, long acknowledged, long modified) {
+        CoalescedWrite coalescedWrite = coalescedWrites.get(fileId);
+        return coalescedWrite != null && coalescedWrite.accessToken.equals(accessToken)
+                && coalescedWrite.acknowledged == acknowledged && coalescedWrite.written == modified;
+    }
+
+    /**
+     * Checks whether a save would leave the file as it is and if so, discards the autosave pending for the file, which
+     * the save supersedes. The check runs while no other save of the file is being written, so it sees the content
+     * of the last save written. An autosave parked during the check is newer than the save checked, and is kept.
+     *
+     * @param fileId
+     * @param unchanged
+     * @return the result of the check
+     */
+    public boolean discardIfUnchanged(String fileId, BooleanSupplier unchanged) {
+        PendingSave pendingSave;
+        synchronized (lock(fileId)) {
+            startWork(fileId, false);
+            pendingSave = pendingSaves.get(fileId);
+        }
+        boolean isUnchanged = false;
+        try {
+            isUnchanged = unchanged.getAsBoolean();
+        } finally {
+            synchronized (lock(fileId)) {
+                if (isUnchanged && pendingSave != null && pendingSaves.remove(fileId, pendingSave)) {
+                    delete(pendingSave.content);
+                }
+                endWork(fileId, isUnchanged);
+            }
+        }
+        return isUnchanged;
+    }
+
+    private void flush(String fileId) {
+        PendingSave pendingSave;
+        synchronized (lock(fileId)) {
+            pendingSave = pendingSaves.remove(fileId);
+            if (pendingSave == null) {
+                return;
+            }
+            startWork(fileId, true);
+        }
+        boolean written = false;
+        try {
+            Date modified = pendingSave.writer.write(pendingSave.content);
+            coalescedWrites.put(fileId, new CoalescedWrite(pendingSave.accessToken,
+                    pendingSave.acknowledged.getTime(), modified.getTime()));
+            written = true;
+        } catch (RuntimeException e) {
+            failedFiles.add(fileId);
+            wopiMetrics.recordAutosaveFailure();
+            logger.error("Failed to write the autosave of file " + fileId, e);
+        } finally {
+            delete(pendingSave.content);
+            endWork(fileId, written);
+        }
+    }
+
+    /**
+     * Waits for the save of the file being written or checked, if any, and marks the file as busy. Must be called
+     * holding the lock of the file.
+     *
+     * @param fileId
+     * @param writing whether a save is to be written, rather than checked
+     */
+    private void startWork(String fileId, boolean writing) {
+        Object lock = lock(fileId);
+        boolean interrupted = false;
+        while (busyFiles.contains(fileId)) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        busyFiles.add(fileId);
+        if (writing) {
+            writingFiles.add(fileId);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ends the work started with startWork, clearing the failed mark of the file if the save was written, or found
+     * unchanged.
+     */
+    private void endWork(String fileId, boolean succeeded) {
+        Object lock = lock(fileId);
+        synchronized (lock) {
+            if (succeeded) {
+                failedFiles.remove(fileId);
+            }
+            writingFiles.remove(fileId);
+            busyFiles.remove(fileId);
+            lock.notifyAll();
+        }
+    }
+
+    private Object lock(String fileId) {
+        return locks[(fileId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static final class PendingSave {
+        private final String accessToken;
+        private final Date acknowledged;
+        private final File content;
+        private final SaveWriter writer;
+
+        private PendingSave(String accessToken, Date acknowledged, File content, SaveWriter writer) {
+            this.accessToken = accessToken;
+            this.acknowledged = acknowledged;
+            this.content = content;
+            this.writer = writer;
+        }
+    }
+
+    private static final class CoalescedWrite {
+        private final String accessToken;
+        private final long acknowledged;
+        private final long written;
+
+        private CoalescedWrite(String accessToken, long acknowledged, long written) {
+            this.accessToken = accessToken;
+            this.acknowledged = acknowledged;
+            this.written = written;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package dk.magenta.libreoffice.online.service;
+
+/**
+ * Management view of the WOPI service as a whole. This is the interface exposed over JMX.
+ */
+public interface WOPIServiceMetrics {
+
+    /**
+     * Returns the total number of file bytes sent by GetFile.
+     * @return
+     */
+    long getBytesSent();
+
+    /**
+     * Returns the total number of file bytes received by PutFile.
+     * @return
+     */
+    long getBytesReceived();
+
+    /**
+     * Returns the total number of times a transaction was retried.
+     * @return
+     */
+    long getTransactionRetryCount();
+
+    /**
+     * Returns the number of coalesced autosaves that failed to be written after LOOL was told they succeeded.
+     * @return
+     */
+    long getAutosaveFailureCount();
+
+    /**
+     * Returns the number of GetFile requests served from the content cache, including those that waited for another
+     * request to load it.
+     * @return
+     */
+    long getContentCacheHitCount();
+
+    /**
+     * Returns the number of GetFile requests that loaded their content into the content cache.
+     * @return
+     */
+    long getContentCacheMissCount();
+
+    /**
+     * Returns the number of access tokens held by the token store, or -1 if the store doesn't hold any state.
+     * @return
+     */
+    int getAccessTokenCount();
+
+    /**
+     * Returns the number of seconds since discovery.xml was last fetched or revalidated, or -1 if it never was.
+     * @return
+     */
+    long getDiscoveryAgeSeconds();
+}
@@ -18,6 +18,13 @@ public interface WOPITokenService {
      */
     NodeRef getFileNodeRef(WOPIAccessTokenInfo tokenInfo);
 
+    /**
+     * Returns what the token in question gives access to
+     * @param tokenInfo
+     * @return
+     */
+    WOPIFileAccess getFileAccess(WOPIAccessTokenInfo tokenInfo);
+
     /**
      * Returns a PersonInfo for the token in question
      * @param tokenInfo
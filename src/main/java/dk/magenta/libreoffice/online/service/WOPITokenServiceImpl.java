@@ -16,6 +16,8 @@ public class WOPITokenServiceImpl implements WOPITokenService {
 
     NodeService nodeService;
     PersonService personService;
+    WOPIPersonInfoCache personInfoCache;
+    WOPIFileAccessCache fileAccessCache;
     LOOLService loolService;
 
     //<editor-fold desc="Service setters">
@@ -27,6 +29,14 @@ public class WOPITokenServiceImpl implements WOPITokenService {
         this.personService = personService;
     }
 
+    public void setPersonInfoCache(WOPIPersonInfoCache personInfoCache) {
+        this.personInfoCache = personInfoCache;
+    }
+
+    public void setFileAccessCache(WOPIFileAccessCache fileAccessCache) {
+        this.fileAccessCache = fileAccessCache;
+    }
+
     public void setLoolService(LOOLService loolService) {
         this.loolService = loolService;
     }
@@ -34,21 +44,33 @@ public class WOPITokenServiceImpl implements WOPITokenService {
     //</editor-fold>
 
     /**
-     * Will return a file nodeRef for the Token in question
+     * Will return a file nodeRef for the Token in question, or null if the file no longer exists. Answered from the
+     * WOPIFileAccessCache.
      *
      * @param tokenInfo
      * @return
      */
     @Override
     public NodeRef getFileNodeRef(WOPIAccessTokenInfo tokenInfo) {
-        NodeRef fileNodeRef = new NodeRef("workspace", "SpacesStore", tokenInfo.getFileId());
-        if (nodeService.exists(fileNodeRef))
-            return fileNodeRef;
+        WOPIFileAccess fileAccess = fileAccessCache.get(tokenInfo);
+        if (fileAccess.exists())
+            return fileAccess.getNodeRef();
         else return null;
     }
 
     /**
-     * Returns a PersonInfo for the token in question
+     * Returns what the token in question gives access to, from the WOPIFileAccessCache
+     *
+     * @param tokenInfo
+     * @return
+     */
+    @Override
+    public WOPIFileAccess getFileAccess(WOPIAccessTokenInfo tokenInfo) {
+        return fileAccessCache.get(tokenInfo);
+    }
+
+    /**
+     * Returns a PersonInfo for the token in question, from the WOPIPersonInfoCache
      *
      * @param tokenInfo
      * @return
@@ -56,8 +78,10 @@ public class WOPITokenServiceImpl implements WOPITokenService {
     @Override
     public PersonInfo getUserInfoOfToken(WOPIAccessTokenInfo tokenInfo) {
         try{
-            NodeRef personNode = personService.getPerson(tokenInfo.getUserName());
-            PersonInfo personInfo = new PersonInfo(personService.getPerson(personNode));
+            PersonInfo personInfo = personInfoCache.get(tokenInfo.getUserName());
+            if (personInfo == null) {
+                throw new NoSuchPersonException(tokenInfo.getUserName());
+            }
             return personInfo;
         }
         catch(NoSuchPersonException | NullPointerException npe){
@@ -0,0 +1,207 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.cmr.version.VersionService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure the documents opened in LOOL are versionable, so every save creates a version. This used to be done by
+ * CheckFileInfo, which turned that read only call into a write; it is now done when an access token is issued, in one
+ * of these modes:
+ * <ul>
+ *     <li>TOKEN: straight away, in the transaction issuing the token.</li>
+ *     <li>ASYNC: the document is queued, and the queue is drained in batches, one transaction per batch, by a
+ *     background thread. Token requests never write.</li>
+ *     <li>NONE: versioning is left alone.</li>
+ * </ul>
+ * Documents are only made versionable on behalf of users that may write to them. Batches run as the system user.
+ *
+ * Tokens issued in bulk, for a whole document list, are always queued, whatever the mode (except NONE), so a bulk
+ * token request never makes up to a page of documents versionable in its own transaction.
+ */
+public class WOPIVersioningEnabler {
+    private static final Log logger = LogFactory.getLog(WOPIVersioningEnabler.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final long DEFAULT_BATCH_INTERVAL_SECONDS = 5;
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    public enum Mode {
+        TOKEN,
+        ASYNC,
+        NONE
+    }
+
+    private NodeService nodeService;
+    private VersionService versionService;
+    private PermissionService permissionService;
+    private RetryingTransactionHelper retryingTransactionHelper;
+    private Mode mode = Mode.TOKEN;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long batchIntervalSeconds = DEFAULT_BATCH_INTERVAL_SECONDS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private BlockingQueue<NodeRef> queue;
+    // The nodes in the queue, so a document opened by many users is only queued once
+    private final Set<NodeRef> queued = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private ScheduledExecutorService batcher;
+
+    //<editor-fold desc="Bean setters">
+    public void setNodeService(NodeService nodeService) {
+        this.nodeService = nodeService;
+    }
+
+    public void setVersionService(VersionService versionService) {
+        this.versionService = versionService;
+    }
+
+    public void setPermissionService(PermissionService permissionService) {
+        this.permissionService = permissionService;
+    }
+
+    public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
+        this.retryingTransactionHelper = retryingTransactionHelper;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchIntervalSeconds(long batchIntervalSeconds) {
+        this.batchIntervalSeconds = batchIntervalSeconds;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+    //</editor-fold>
+
+    public void init() {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        queue = new LinkedBlockingQueue<>(queueCapacity);
+        batcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WOPIVersioningEnabler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        batcher.scheduleWithFixedDelay(this::drainSafely, batchIntervalSeconds, batchIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    public void destroy() {
+        if (batcher != null) {
+            batcher.shutdownNow();
+        }
+    }
+
+    /**
+     * To be called, in the transaction issuing it, when an access token has been issued for the document.
+     *
+     * @param nodeRef
+     */
+    public void onTokenIssued(NodeRef nodeRef) {
+        if (mode == Mode.NONE || nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)) {
+            return;
+        }
+        // Checked up front: a permission failure inside the version service would roll the token transaction back
+        if (permissionService.hasPermission(nodeRef, PermissionService.WRITE) != AccessStatus.ALLOWED) {
+            return;
+        }
+        if (mode == Mode.TOKEN) {
+            versionService.ensureVersioningEnabled(nodeRef, new HashMap<QName, Serializable>(1, 1.0f));
+        } else {
+            enqueue(nodeRef);
+        }
+    }
+
+    /**
+     * To be called when an access token has been issued for the document as one of many, with what the token gives
+     * access to. The document is queued to be made versionable, whatever the mode.
+     *
+     * @param fileAccess
+     */
+    public void onBulkTokenIssued(WOPIFileAccess fileAccess) {
+        if (mode == Mode.NONE || !fileAccess.canWrite()
+                || nodeService.hasAspect(fileAccess.getNodeRef(), ContentModel.ASPECT_VERSIONABLE)) {
+            return;
+        }
+        enqueue(fileAccess.getNodeRef());
+    }
+
+    private void enqueue(NodeRef nodeRef) {
+        if (queued.add(nodeRef) && !queue.offer(nodeRef)) {
+            queued.remove(nodeRef);
+            logger.warn("Versioning queue full, " + nodeRef + " will be queued again when next opened");
+        }
+    }
+
+    void drain() {
+        List<NodeRef> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            try {
+                enableVersioning(batch);
+            } catch (RuntimeException e) {
+                // Don't let one bad document hold up the rest of the batch
+                logger.warn("Failed to enable versioning for a batch of " + batch.size()
+                        + " documents, retrying them one by one", e);
+                for (NodeRef nodeRef : batch) {
+                    try {
+                        enableVersioning(Collections.singletonList(nodeRef));
+                    } catch (RuntimeException ne) {
+                        logger.error("Failed to enable versioning for " + nodeRef, ne);
+                    }
+                }
+            } finally {
+                queued.removeAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void enableVersioning(List<NodeRef> nodeRefs) {
+        AuthenticationUtil.runAsSystem(() -> retryingTransactionHelper.doInTransaction(() -> {
+            for (NodeRef nodeRef : nodeRefs) {
+                if (nodeService.exists(nodeRef) && !nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)) {
+                    versionService.ensureVersioningEnabled(nodeRef, new HashMap<QName, Serializable>(1, 1.0f));
+                }
+            }
+            return null;
+        }, false, true));
+    }
+
+    private void drainSafely() {
+        try {
+            drain();
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the scheduled batches
+            logger.error("Failed to enable versioning for the queued documents", e);
+        }
+    }
+}
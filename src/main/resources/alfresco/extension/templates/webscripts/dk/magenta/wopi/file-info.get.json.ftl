@@ -1,18 +0,0 @@
-{
-    "BaseFileName":"${BaseFileName?js_string}",
-    "DisableCopy":${DisableCopy?c},
-    "DisablePrint":${DisablePrint?c},
-    "DisableExport":${DisableExport?c},
-    "EnableOwnerTermination":${EnableOwnerTermination?c},
-    "HideExportOption":${HideExportOption?c},
-    "HideSaveOption":${HideSaveOption?c},
-    "HidePrintOption":${HidePrintOption?c},
-    "LastModifiedTime":"${LastModifiedTime?js_string}",
-    "OwnerId":"${OwnerId?js_string}",
-    "PostMessageOrigin":"${PostMessageOrigin?js_string}",
-    "Size":${Size?c},
-    "UserId":"${UserId?js_string}",
-    "UserCanWrite":${UserCanWrite?c},
-    "UserFriendlyName":"${UserFriendlyName?js_string}",
-    "Version":"${Version?js_string}"
-}
\ No newline at end of file
@@ -0,0 +1,7 @@
+{
+  "ready": ${ready?c},
+  "discovery_source": "${discovery_source?json_string}",
+  "discovery_url": "${discovery_url?json_string}",
+  "discovery_last_refreshed": ${discovery_last_refreshed?c},
+  "discovery_last_error": "${discovery_last_error?json_string}"
+}
\ No newline at end of file
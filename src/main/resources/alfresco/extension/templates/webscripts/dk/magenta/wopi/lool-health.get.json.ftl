@@ -0,0 +1,4 @@
+{
+  "ready": ${ready?c},
+  "discovery_source": "${discovery_source?json_string}"
+}
\ No newline at end of file
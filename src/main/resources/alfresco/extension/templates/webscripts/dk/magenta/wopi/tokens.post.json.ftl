@@ -0,0 +1,16 @@
+{
+  "tokens": [
+<#list tokens as token>
+    {
+      "nodeRef": "${token.nodeRef?js_string}",
+<#if token.error??>
+      "error": "${token.error?js_string}"
+<#else>
+      "access_token": "${token.access_token?js_string}",
+      "access_token_ttl": "${token.access_token_ttl?c}",
+      "wopi_src_url": "${token.wopi_src_url?js_string}"
+</#if>
+    }<#if token_has_next>,</#if>
+</#list>
+  ]
+}
\ No newline at end of file
@@ -0,0 +1,142 @@
+package dk.magenta.libreoffice.online.benchmark;
+
+import dk.magenta.libreoffice.online.LOOLCheckFileInfoWebScript;
+import dk.magenta.libreoffice.online.service.InMemoryWOPIAccessTokenStore;
+import dk.magenta.libreoffice.online.service.LOOLServiceImpl;
+import dk.magenta.libreoffice.online.service.WOPIFileInfoCache;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
+import dk.magenta.libreoffice.online.service.WOPIPersonInfoCache;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.io.FilenameUtils;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A CheckFileInfo call for a document opened with a valid token, through LOOLCheckFileInfoWebScript with the token
+ * check and the file info and person caches in place, against stubbed NodeService and PersonService. With cached
+ * set to false every call misses the caches, which is what the first call for a document and every call after a
+ * change costs.
+ *
+ * legacyModel builds the model the DeclarativeWebScript CheckFileInfo used to: one getProperty call per property, a
+ * new DateTimeFormatter per call and a HashMap model. The FreeMarker template it was rendered with isn't available
+ * outside the repository, so the model is serialised with JSONObject instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckFileInfoBenchmark {
+    private static final String FILE_ID = "0d3c5a2e-7b6f-4c1e-9f5a-3b2d1c0e9f8a";
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private InMemoryWOPIAccessTokenStore accessTokenStore;
+    private LOOLServiceImpl loolService;
+    private NodeService nodeService;
+    private LOOLCheckFileInfoWebScript webScript;
+    private WebScriptRequest request;
+    private final ServiceStubs.Response response = new ServiceStubs.Response();
+
+    @Setup
+    public void setUp() {
+        ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes = ServiceStubs.repository();
+        ServiceStubs.addDocument(nodes, FILE_ID, "Budget 2018.odt", 48213);
+        ServiceStubs.addPerson(nodes, ServiceStubs.USER_NAME);
+        nodeService = ServiceStubs.nodeService(nodes);
+        accessTokenStore = new InMemoryWOPIAccessTokenStore();
+        accessTokenStore.init();
+        loolService = ServiceStubs.loolService(accessTokenStore, nodeService,
+                ServiceStubs.fileAccessCache(nodeService, 10000));
+        String accessToken = AuthenticationUtil.runAs(() -> loolService.createAccessToken(FILE_ID).getAccessToken(),
+                ServiceStubs.USER_NAME);
+
+        long ttlSeconds = cached ? 60 : 0;
+        WOPIFileInfoCache fileInfoCache = new WOPIFileInfoCache();
+        fileInfoCache.setTtlSeconds(ttlSeconds);
+        WOPIPersonInfoCache personInfoCache = new WOPIPersonInfoCache();
+        personInfoCache.setPersonService(ServiceStubs.personService(nodes));
+        personInfoCache.setNodeService(nodeService);
+        personInfoCache.setTtlSeconds(ttlSeconds);
+
+        webScript = new LOOLCheckFileInfoWebScript();
+        webScript.setLoolService(loolService);
+        webScript.setNodeService(nodeService);
+        webScript.setFileInfoCache(fileInfoCache);
+        webScript.setPersonInfoCache(personInfoCache);
+        webScript.setWopiMetrics(new WOPIMetrics());
+
+        request = ServiceStubs.request(FILE_ID, accessToken);
+    }
+
+    @TearDown
+    public void tearDown() {
+        accessTokenStore.destroy();
+    }
+
+    @Benchmark
+    public String checkFileInfo() throws IOException {
+        response.reset();
+        webScript.execute(request, response.proxy);
+        return response.body.toString();
+    }
+
+    @Benchmark
+    public String legacyModel() {
+        NodeRef nodeRef = loolService.checkAccessToken(request);
+        Map<String, Object> model = new HashMap<>();
+        Date lastModifiedDate = (Date) nodeService.getProperty(nodeRef, ContentModel.PROP_MODIFIED);
+        String dte = DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC)
+                .format(Instant.ofEpochMilli(lastModifiedDate.getTime()));
+        String name = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+        model.put("BaseFileName", name != null ? FilenameUtils.getName(name) : "");
+        model.put("DisableCopy", false);
+        model.put("DisablePrint", true);
+        model.put("DisableExport", true);
+        model.put("HideExportOption", true);
+        model.put("HideSaveOption", false);
+        model.put("HidePrintOption", true);
+        model.put("LastModifiedTime", dte);
+        model.put("OwnerId", nodeService.getProperty(nodeRef, ContentModel.PROP_CREATOR).toString());
+        model.put("Size", ((ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT)).getSize());
+        model.put("UserId", AuthenticationUtil.getRunAsUser());
+        model.put("UserCanWrite", true);
+        model.put("UserExtraInfo", "");
+        model.put("UserFriendlyName", AuthenticationUtil.getRunAsUser());
+        nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+        model.put("Version", nodeService.getProperty(nodeRef, ContentModel.PROP_VERSION_LABEL).toString());
+        model.put("PostMessageOrigin", loolService.getAlfExternalHost().toString());
+        model.put("EnableOwnerTermination", false);
+        return new JSONObject(model).toString();
+    }
+}
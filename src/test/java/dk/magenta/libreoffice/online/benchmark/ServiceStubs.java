@@ -0,0 +1,480 @@
+package dk.magenta.libreoffice.online.benchmark;
+
+import dk.magenta.libreoffice.online.service.ClusteredWOPIAccessTokenStore;
+import dk.magenta.libreoffice.online.service.InMemoryWOPIAccessTokenStore;
+import dk.magenta.libreoffice.online.service.LOOLServiceImpl;
+import dk.magenta.libreoffice.online.service.SignedWOPIAccessTokenStore;
+import dk.magenta.libreoffice.online.service.WOPIAccessTokenStore;
+import dk.magenta.libreoffice.online.service.WOPIFileAccessCache;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.DefaultSimpleCache;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.springframework.extensions.surf.util.Content;
+import org.springframework.extensions.webscripts.Match;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * The Alfresco services the WOPI code depends on, stubbed out with an in-memory repository: a map from node to its
+ * properties, with content kept in files named after their content URL. The benchmarks and the load generator use
+ * them to measure the code of the module rather than a repository. Anything the stubs don't implement fails with an
+ * UnsupportedOperationException, so a code path that starts using more of a service shows up straight away.
+ *
+ * The properties of a node are never changed in place. A read-write transaction collects its changes and replaces
+ * the properties of the nodes it changed when it commits, so other threads see either all of a save or none of it,
+ * as they would with the isolation of the database.
+ */
+final class ServiceStubs {
+    static final String USER_NAME = "abeecher";
+    static final String MIMETYPE = "application/vnd.oasis.opendocument.text";
+    static final URL ALF_EXTERNAL_HOST = url("https://alfresco.example.com");
+
+    private static final String CONTENT_URL_PREFIX = "store://";
+    private static final ThreadLocal<Transaction> TRANSACTION = new ThreadLocal<>();
+
+    private ServiceStubs() {
+    }
+
+    static NodeRef nodeRef(String fileId) {
+        return new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, fileId);
+    }
+
+    static NodeRef personRef(String userName) {
+        return nodeRef(UUID.nameUUIDFromBytes(userName.getBytes(StandardCharsets.UTF_8)).toString());
+    }
+
+    /**
+     * An empty repository, for the stubbed services to share.
+     */
+    static ConcurrentMap<NodeRef, Map<QName, Serializable>> repository() {
+        return new ConcurrentHashMap<>();
+    }
+
+    static void addPerson(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes, String userName) {
+        Map<QName, Serializable> properties = new HashMap<>();
+        properties.put(ContentModel.PROP_USERNAME, userName);
+        properties.put(ContentModel.PROP_FIRSTNAME, "Alice");
+        properties.put(ContentModel.PROP_LASTNAME, userName);
+        nodes.put(personRef(userName), properties);
+    }
+
+    /**
+     * Adds a versioned document, as cm:content with the given size.
+     */
+    static void addDocument(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes, String fileId, String name,
+                            String contentUrl, long size) {
+        Map<QName, Serializable> properties = new HashMap<>();
+        properties.put(ContentModel.PROP_NAME, name);
+        properties.put(ContentModel.PROP_CREATOR, "admin");
+        properties.put(ContentModel.PROP_MODIFIED, new Date());
+        properties.put(ContentModel.PROP_VERSION_LABEL, "1.3");
+        properties.put(ContentModel.PROP_CONTENT, new ContentData(contentUrl, MIMETYPE, size, "UTF-8"));
+        nodes.put(nodeRef(fileId), properties);
+    }
+
+    static void addDocument(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes, String fileId, String name,
+                            long size) {
+        addDocument(nodes, fileId, name, newContentUrl(), size);
+    }
+
+    /**
+     * A NodeService on the given repository. Every node has every aspect.
+     */
+    static NodeService nodeService(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes) {
+        return (NodeService) Proxy.newProxyInstance(NodeService.class.getClassLoader(),
+                new Class<?>[]{NodeService.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "exists":
+                            return nodes.containsKey((NodeRef) args[0]);
+                        case "getProperties":
+                            // A copy, as the real NodeService hands out
+                            return new HashMap<>(properties(nodes, (NodeRef) args[0]));
+                        case "getProperty":
+                            return properties(nodes, (NodeRef) args[0]).get((QName) args[1]);
+                        case "setProperty":
+                            change(nodes, (NodeRef) args[0],
+                                    Collections.singletonMap((QName) args[1], (Serializable) args[2]));
+                            return null;
+                        case "hasAspect":
+                            return true;
+                        case "addAspect":
+                            @SuppressWarnings("unchecked")
+                            Map<QName, Serializable> aspectProperties = (Map<QName, Serializable>) args[2];
+                            change(nodes, (NodeRef) args[0], aspectProperties);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * A ContentService on the given repository, keeping content in files in the given directory. Like a file content
+     * store, every write goes to a new content URL, so a reader of the old content isn't disturbed. The given
+     * callback is told about every write once it is committed, as the content policies would be.
+     */
+    static ContentService contentService(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes, File directory,
+                                         Consumer<NodeRef> onWrite) {
+        return (ContentService) Proxy.newProxyInstance(ContentService.class.getClassLoader(),
+                new Class<?>[]{ContentService.class}, (proxy, method, args) -> {
+                    NodeRef nodeRef = (NodeRef) args[0];
+                    ContentData contentData =
+                            (ContentData) properties(nodes, nodeRef).get(ContentModel.PROP_CONTENT);
+                    switch (method.getName()) {
+                        case "getReader":
+                            return new FileContentReader(contentFile(directory, contentData.getContentUrl()));
+                        case "getWriter":
+                            return contentWriter(nodes, nodeRef, contentData, directory, onWrite);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    static String newContentUrl() {
+        return CONTENT_URL_PREFIX + UUID.randomUUID() + ".bin";
+    }
+
+    static File contentFile(File directory, String contentUrl) {
+        return new File(directory, contentUrl.substring(CONTENT_URL_PREFIX.length()));
+    }
+
+    /**
+     * A PermissionService that allows everything.
+     */
+    static PermissionService permissionService() {
+        return (PermissionService) Proxy.newProxyInstance(PermissionService.class.getClassLoader(),
+                new Class<?>[]{PermissionService.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("hasPermission")) {
+                        return AccessStatus.ALLOWED;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /**
+     * A PersonService knowing the people added to the given repository.
+     */
+    static PersonService personService(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes) {
+        return (PersonService) Proxy.newProxyInstance(PersonService.class.getClassLoader(),
+                new Class<?>[]{PersonService.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getPersonOrNull")) {
+                        NodeRef personRef = personRef((String) args[0]);
+                        return nodes.containsKey(personRef) ? personRef : null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /**
+     * Runs every callback straight away, without retrying. A read-write callback outside of a transaction, or one
+     * requiring a new transaction, gets a transaction of its own, which commits if the callback returns.
+     */
+    static RetryingTransactionHelper transactionHelper() {
+        return new RetryingTransactionHelper() {
+            @Override
+            public <R> R doInTransaction(RetryingTransactionCallback<R> cb, boolean readOnly, boolean requiresNew) {
+                Transaction outer = TRANSACTION.get();
+                if (readOnly || outer != null && !requiresNew) {
+                    return execute(cb);
+                }
+                Transaction transaction = new Transaction();
+                TRANSACTION.set(transaction);
+                R result;
+                try {
+                    result = execute(cb);
+                } finally {
+                    TRANSACTION.set(outer);
+                }
+                transaction.commit();
+                return result;
+            }
+
+            private <R> R execute(RetryingTransactionCallback<R> cb) {
+                try {
+                    return cb.execute();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * A token store of the given kind, as configured with lool.wopi.token.store, with room for at least the given
+     * number of tokens. The clustered store runs on DefaultSimpleCache, which is what a single node without Hazelcast
+     * has; the signed store on a key of its own. An in-memory store has to be destroyed after use.
+     */
+    static WOPIAccessTokenStore tokenStore(String store, int tokens) {
+        switch (store) {
+            case "inMemory":
+                InMemoryWOPIAccessTokenStore inMemoryStore = new InMemoryWOPIAccessTokenStore();
+                inMemoryStore.setMaxTokens(Math.max(tokens, 100000));
+                inMemoryStore.init();
+                return inMemoryStore;
+            case "clustered":
+                ClusteredWOPIAccessTokenStore clusteredStore = new ClusteredWOPIAccessTokenStore();
+                clusteredStore.setTokenCache(new DefaultSimpleCache<>(tokens * 2, "wopiAccessTokenCache"));
+                clusteredStore.setFileUserCache(new DefaultSimpleCache<>(tokens * 2, "wopiFileUserCache"));
+                clusteredStore.setMaxTokens(tokens * 2);
+                return clusteredStore;
+            case "signed":
+                byte[] secret = new byte[32];
+                new SecureRandom().nextBytes(secret);
+                SignedWOPIAccessTokenStore signedStore = new SignedWOPIAccessTokenStore();
+                signedStore.setKeys("stub:" + Base64.getEncoder().encodeToString(secret));
+                signedStore.setActiveKeyId("stub");
+                signedStore.init();
+                return signedStore;
+            default:
+                throw new IllegalArgumentException("Unknown token store " + store);
+        }
+    }
+
+    static WOPIFileAccessCache fileAccessCache(NodeService nodeService, int maxItems) {
+        WOPIFileAccessCache fileAccessCache = new WOPIFileAccessCache();
+        fileAccessCache.setNodeService(nodeService);
+        fileAccessCache.setPermissionService(permissionService());
+        fileAccessCache.setMaxItems(maxItems);
+        return fileAccessCache;
+    }
+
+    /**
+     * The real LOOLServiceImpl, without the discovery, on top of the given store and stubbed services.
+     */
+    static LOOLServiceImpl loolService(WOPIAccessTokenStore accessTokenStore, NodeService nodeService,
+                                       WOPIFileAccessCache fileAccessCache) {
+        LOOLServiceImpl loolService = new LOOLServiceImpl();
+        loolService.setAccessTokenStore(accessTokenStore);
+        loolService.setNodeService(nodeService);
+        loolService.setFileAccessCache(fileAccessCache);
+        loolService.setAlfExternalHost(ALF_EXTERNAL_HOST);
+        return loolService;
+    }
+
+    /**
+     * A request with the given parameters, headers and body, matched by the URL template of the web script.
+     */
+    static WebScriptRequest request(Map<String, String> templateVars, Map<String, String> parameters,
+                                    Map<String, String> headers, byte[] body) {
+        Match match = new Match("/wopi/files/{fileId}", templateVars, "/wopi/files/" + templateVars.get("fileId"));
+        Content content = (Content) Proxy.newProxyInstance(Content.class.getClassLoader(),
+                new Class<?>[]{Content.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getInputStream")) {
+                        return new ByteArrayInputStream(body);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        return (WebScriptRequest) Proxy.newProxyInstance(WebScriptRequest.class.getClassLoader(),
+                new Class<?>[]{WebScriptRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getServiceMatch":
+                            return match;
+                        case "getParameter":
+                            return parameters.get((String) args[0]);
+                        case "getHeader":
+                            return headers.get((String) args[0]);
+                        case "getContent":
+                            return content;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * A WOPI request for the given file with the given access token, as matched by the /wopi/files/{fileId} URL
+     * templates.
+     */
+    static WebScriptRequest request(String fileId, String accessToken, Map<String, String> headers, byte[] body) {
+        return request(Collections.singletonMap("fileId", fileId),
+                Collections.singletonMap("access_token", accessToken), headers, body);
+    }
+
+    static WebScriptRequest request(String fileId, String accessToken) {
+        return request(fileId, accessToken, Collections.emptyMap(), new byte[0]);
+    }
+
+    /**
+     * A response keeping the status, the headers and the body written, counting the bytes of a binary body.
+     */
+    static final class Response {
+        final StringWriter body = new StringWriter();
+        final CountingOutputStream content = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        final Map<String, String> headers = new HashMap<>();
+        int status = Status.STATUS_OK;
+
+        final WebScriptResponse proxy = (WebScriptResponse) Proxy.newProxyInstance(
+                WebScriptResponse.class.getClassLoader(), new Class<?>[]{WebScriptResponse.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getWriter":
+                            return body;
+                        case "getOutputStream":
+                            return content;
+                        case "setStatus":
+                            status = (Integer) args[0];
+                            return null;
+                        case "setHeader":
+                        case "addHeader":
+                            headers.put((String) args[0], (String) args[1]);
+                            return null;
+                        case "setContentType":
+                        case "setContentEncoding":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        void reset() {
+            body.getBuffer().setLength(0);
+            content.resetByteCount();
+            headers.clear();
+            status = Status.STATUS_OK;
+        }
+    }
+
+    private static ContentWriter contentWriter(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes,
+                                               NodeRef nodeRef, ContentData current, File directory,
+                                               Consumer<NodeRef> onWrite) {
+        String contentUrl = newContentUrl();
+        return (ContentWriter) Proxy.newProxyInstance(ContentWriter.class.getClassLoader(),
+                new Class<?>[]{ContentWriter.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMimetype":
+                            return current.getMimetype();
+                        case "setMimetype":
+                            return null;
+                        case "getContentUrl":
+                            return contentUrl;
+                        case "putContent":
+                            File file = contentFile(directory, contentUrl);
+                            try {
+                                Files.copy(((File) args[0]).toPath(), file.toPath());
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            Map<QName, Serializable> properties = new HashMap<>();
+                            properties.put(ContentModel.PROP_CONTENT, new ContentData(contentUrl,
+                                    current.getMimetype(), file.length(), current.getEncoding()));
+                            properties.put(ContentModel.PROP_MODIFIED, new Date());
+                            change(nodes, nodeRef, properties);
+                            afterCommit(() -> onWrite.accept(nodeRef));
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * The properties of the node as the current thread sees them: the committed ones, with the changes of its
+     * transaction on top.
+     */
+    private static Map<QName, Serializable> properties(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes,
+                                                       NodeRef nodeRef) {
+        Map<QName, Serializable> committed = nodes.get(nodeRef);
+        Transaction transaction = TRANSACTION.get();
+        Map<QName, Serializable> changes = transaction == null ? null : transaction.changes.get(nodeRef);
+        if (changes == null) {
+            return committed;
+        }
+        Map<QName, Serializable> properties = new HashMap<>(committed);
+        properties.putAll(changes);
+        return properties;
+    }
+
+    private static void change(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes, NodeRef nodeRef,
+                               Map<QName, Serializable> properties) {
+        Transaction transaction = TRANSACTION.get();
+        if (transaction == null) {
+            commit(nodes, nodeRef, properties);
+        } else {
+            transaction.nodes = nodes;
+            transaction.changes.computeIfAbsent(nodeRef, key -> new HashMap<>()).putAll(properties);
+        }
+    }
+
+    private static void commit(ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes, NodeRef nodeRef,
+                               Map<QName, Serializable> properties) {
+        nodes.computeIfPresent(nodeRef, (key, committed) -> {
+            Map<QName, Serializable> merged = new HashMap<>(committed);
+            merged.putAll(properties);
+            return merged;
+        });
+    }
+
+    private static void afterCommit(Runnable runnable) {
+        Transaction transaction = TRANSACTION.get();
+        if (transaction == null) {
+            runnable.run();
+        } else {
+            transaction.afterCommit.add(runnable);
+        }
+    }
+
+    private static URL url(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(url, e);
+        }
+    }
+
+    /**
+     * The changes of a read-write transaction, and what to do once they are committed.
+     */
+    private static final class Transaction {
+        private final Map<NodeRef, Map<QName, Serializable>> changes = new HashMap<>();
+        private final List<Runnable> afterCommit = new ArrayList<>();
+        private ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes;
+
+        private void commit() {
+            for (Map.Entry<NodeRef, Map<QName, Serializable>> change : changes.entrySet()) {
+                ServiceStubs.commit(nodes, change.getKey(), change.getValue());
+            }
+            afterCommit.forEach(Runnable::run);
+        }
+    }
+}
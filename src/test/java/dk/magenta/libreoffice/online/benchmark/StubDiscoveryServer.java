@@ -0,0 +1,74 @@
+package dk.magenta.libreoffice.online.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for the discovery endpoint of a LOOL server: serves the discovery.xml bundled with the module on
+ * /hosting/discovery of a free port on the loopback interface, with its urlsrc placeholders pointing at that port.
+ */
+final class StubDiscoveryServer {
+    private static final String DISCOVERY_PATH = "/hosting/discovery";
+    private static final String URL_SRC_PLACEHOLDER = "${lool.wopi.url.src}";
+
+    private final HttpServer server;
+    private final String baseUrl;
+    private final byte[] discoveryXml;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    StubDiscoveryServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        baseUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        try (InputStream inputStream = StubDiscoveryServer.class.getResourceAsStream("/discovery.xml")) {
+            discoveryXml = IOUtils.toString(inputStream, StandardCharsets.UTF_8)
+                    .replace(URL_SRC_PLACEHOLDER, getUrlSrc()).getBytes(StandardCharsets.UTF_8);
+        }
+        server.createContext(DISCOVERY_PATH, this::serveDiscovery);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    URL getBaseURL() throws IOException {
+        return new URL(baseUrl + "/");
+    }
+
+    URL getDiscoveryURL() throws IOException {
+        return new URL(baseUrl + DISCOVERY_PATH);
+    }
+
+    /**
+     * The src URL the served discovery.xml gives for every app.
+     */
+    String getUrlSrc() {
+        return baseUrl + "/loleaflet/dist/loleaflet.html?";
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    private void serveDiscovery(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(200, discoveryXml.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(discoveryXml);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package dk.magenta.libreoffice.online.benchmark;
+
+import dk.magenta.libreoffice.online.service.InMemoryWOPIAccessTokenStore;
+import dk.magenta.libreoffice.online.service.LOOLServiceImpl;
+import dk.magenta.libreoffice.online.service.WOPIAccessTokenInfo;
+import dk.magenta.libreoffice.online.service.WOPIAccessTokenStore;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issuing and checking access tokens through LOOLServiceImpl, from 8 threads at once, with each token store holding
+ * from a single token (every thread renewing the same one) to 100k. The file access of a new token is resolved
+ * against stubbed NodeService and PermissionService, as it is when a token is issued.
+ *
+ * The in-memory and clustered stores renew the prefilled tokens; the signed store issues a new token on every call.
+ * The clustered store runs on DefaultSimpleCache, which is what a single node without Hazelcast has.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class WOPIAccessTokenBenchmark {
+    @Param({"1", "1000", "100000"})
+    public int tokens;
+
+    @Param({"inMemory", "clustered", "signed"})
+    public String store;
+
+    private WOPIAccessTokenStore accessTokenStore;
+    private LOOLServiceImpl loolService;
+    private String[] fileIds;
+    private String[] accessTokens;
+
+    @Setup
+    public void setUp() {
+        accessTokenStore = ServiceStubs.tokenStore(store, tokens);
+        ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes = ServiceStubs.repository();
+        fileIds = new String[tokens];
+        for (int i = 0; i < tokens; i++) {
+            fileIds[i] = new UUID(0, i).toString();
+            ServiceStubs.addDocument(nodes, fileIds[i], "document" + i + ".odt", 16384);
+        }
+        NodeService nodeService = ServiceStubs.nodeService(nodes);
+        loolService = ServiceStubs.loolService(accessTokenStore, nodeService,
+                ServiceStubs.fileAccessCache(nodeService, Math.max(tokens, 10000)));
+
+        accessTokens = new String[tokens];
+        AuthenticationUtil.runAs(() -> {
+            for (int i = 0; i < tokens; i++) {
+                accessTokens[i] = loolService.createAccessToken(fileIds[i]).getAccessToken();
+            }
+            return null;
+        }, ServiceStubs.USER_NAME);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (accessTokenStore instanceof InMemoryWOPIAccessTokenStore) {
+            ((InMemoryWOPIAccessTokenStore) accessTokenStore).destroy();
+        }
+    }
+
+    /**
+     * Every benchmark thread runs as the user the tokens were issued to.
+     */
+    @State(Scope.Thread)
+    public static class RunAsUser {
+        @Setup
+        public void setUp() {
+            AuthenticationUtil.setRunAsUser(ServiceStubs.USER_NAME);
+        }
+    }
+
+    @Benchmark
+    public WOPIAccessTokenInfo createAccessToken(RunAsUser runAsUser) {
+        return loolService.createAccessToken(fileIds[ThreadLocalRandom.current().nextInt(tokens)]);
+    }
+
+    @Benchmark
+    public WOPIAccessTokenInfo getAccessToken() {
+        int i = ThreadLocalRandom.current().nextInt(tokens);
+        return loolService.getAccessToken(accessTokens[i], fileIds[i]);
+    }
+}
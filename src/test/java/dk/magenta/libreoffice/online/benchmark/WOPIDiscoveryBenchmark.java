@@ -0,0 +1,90 @@
+package dk.magenta.libreoffice.online.benchmark;
+
+import dk.magenta.libreoffice.online.service.WOPIDiscovery;
+import dk.magenta.libreoffice.online.service.WOPILoader;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovery lookups and parsing: the DOM and per-call XPath evaluation WOPILoader used to do, against the
+ * WOPIDiscovery index that replaced it. loaderLookup is the WOPILoader.getSrcURL call the token web scripts make,
+ * serving the bundled discovery.xml.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WOPIDiscoveryBenchmark {
+    private static final String XPATH_EXPRESSION =
+            "/wopi-discovery/net-zone/app[@name='${mimeType}']/action[@name='${action}']/@urlsrc";
+
+    @Param({"application/vnd.oasis.opendocument.text", "application/x-unknown"})
+    public String mimeType;
+
+    private byte[] discoveryXml;
+    private Document discoveryDoc;
+    private WOPIDiscovery discovery;
+    private WOPILoader loader;
+
+    @Setup
+    public void setUp() throws Exception {
+        try (InputStream inputStream = WOPIDiscoveryBenchmark.class.getResourceAsStream("/discovery.xml")) {
+            discoveryXml = IOUtils.toByteArray(inputStream);
+        }
+        discoveryDoc = parseDocument();
+        discovery = parseIndex();
+        loader = new WOPILoader(new URL("https://lool.example.com:9980/hosting/discovery"));
+        loader.setBundledUrlSrc("https://lool.example.com:9980/loleaflet/dist/loleaflet.html?");
+        loader.loadBundledDiscovery();
+    }
+
+    @Benchmark
+    public String xpathLookup() throws Exception {
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        String xPathExpr = XPATH_EXPRESSION.replace("${mimeType}", mimeType).replace("${action}", "edit");
+        return xPath.evaluate(xPathExpr, discoveryDoc);
+    }
+
+    @Benchmark
+    public String indexLookup() {
+        return discovery.getSrcURL(mimeType, "edit");
+    }
+
+    @Benchmark
+    public String loaderLookup() throws Exception {
+        return loader.getSrcURL(mimeType, "edit");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Document parseDocument() throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(discoveryXml));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public WOPIDiscovery parseIndex() throws Exception {
+        return WOPIDiscovery.parse(new ByteArrayInputStream(discoveryXml));
+    }
+}
@@ -0,0 +1,618 @@
+package dk.magenta.libreoffice.online.benchmark;
+
+import dk.magenta.libreoffice.online.LOOLCheckFileInfoWebScript;
+import dk.magenta.libreoffice.online.LOOLGetFileWebScript;
+import dk.magenta.libreoffice.online.LOOLGetTokenWebScript;
+import dk.magenta.libreoffice.online.LOOLPutFileWebScript;
+import dk.magenta.libreoffice.online.service.InMemoryWOPIAccessTokenStore;
+import dk.magenta.libreoffice.online.service.LOOLServiceImpl;
+import dk.magenta.libreoffice.online.service.WOPIAccessTokenInfo;
+import dk.magenta.libreoffice.online.service.WOPIAccessTokenStore;
+import dk.magenta.libreoffice.online.service.WOPIContentCache;
+import dk.magenta.libreoffice.online.service.WOPIContentPrefetcher;
+import dk.magenta.libreoffice.online.service.WOPIFileAccessCache;
+import dk.magenta.libreoffice.online.service.WOPIFileInfoCache;
+import dk.magenta.libreoffice.online.service.WOPILoader;
+import dk.magenta.libreoffice.online.service.WOPILockServiceImpl;
+import dk.magenta.libreoffice.online.service.WOPIMetrics;
+import dk.magenta.libreoffice.online.service.WOPIPersonInfoCache;
+import dk.magenta.libreoffice.online.service.WOPIPostSaveProcessor;
+import dk.magenta.libreoffice.online.service.WOPISaveCoalescer;
+import dk.magenta.libreoffice.online.service.WOPITokenServiceImpl;
+import dk.magenta.libreoffice.online.service.WOPIVersioningEnabler;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.lock.LockService;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.MimetypeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulates LOOL editing sessions against the WOPI web scripts, without a LOOL server or a repository. Every virtual
+ * user opens a random document, the way LOOL does: a token from GetToken, then CheckFileInfo and GetFile with it,
+ * followed by periodic autosaves and a save on close through PutFile. Sessions are repeated until the run is over.
+ * There are fewer documents than users, so documents are edited by several users at once.
+ *
+ * The web scripts, token store, caches, lock service and save coalescer are the real ones, wired as in
+ * webscript-context.xml and service-context.xml; the Alfresco services under them are the ServiceStubs. The discovery
+ * is fetched by the real WOPILoader from a StubDiscoveryServer. The post save processing, which runs after commit,
+ * is left out, as is the prefetch, which is off.
+ *
+ * Several users saving the same document get their saves refused with LOOL_STATUS_DOC_CHANGED, as each save changes
+ * the document under the others. Like a LOOL whose user chooses to keep their version, the session then saves again
+ * without the timestamp. These conflicts are counted, but aren't errors.
+ *
+ * Besides the web scripts failing, a session fails if CheckFileInfo answers for another user or document than the
+ * token was issued for, or GetFile sends fewer bytes than it announced.
+ *
+ * At the end the throughput, latency percentiles and errors of every operation are printed, and written as JSON to
+ * the file given as the only argument. The exit code is 1 if anything failed, so a CI build running it with the
+ * loadtest profile fails too. The run is configured with system properties, see Settings.
+ */
+public class WOPILoadGenerator {
+    private static final String ACTION = "edit";
+    private static final String DOC_CHANGED = "\"LOOLStatusCode\":1010";
+
+    /**
+     * What a session does, in the order it does it.
+     */
+    enum Operation {
+        GET_TOKEN("GetToken"),
+        CHECK_FILE_INFO("CheckFileInfo"),
+        GET_FILE("GetFile"),
+        AUTOSAVE("PutFile autosave"),
+        EXIT_SAVE("PutFile on close");
+
+        private final String displayName;
+
+        Operation(String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    /**
+     * The size and shape of the run.
+     */
+    static final class Settings {
+        final int users = Integer.getInteger("loadtest.users", 50);
+        final int documents = Integer.getInteger("loadtest.documents", 20);
+        final long durationSeconds = Long.getLong("loadtest.durationSeconds", 60);
+        final int documentSizeBytes = Integer.getInteger("loadtest.documentSizeBytes", 64 * 1024);
+        final long autosaveIntervalMs = Long.getLong("loadtest.autosaveIntervalMs", 2000);
+        final int autosavesPerSession = Integer.getInteger("loadtest.autosavesPerSession", 5);
+        final boolean autosaveCoalescing = Boolean.parseBoolean(
+                System.getProperty("loadtest.autosaveCoalescing", "true"));
+        final long autosaveWindowSeconds = Long.getLong("loadtest.autosaveWindowSeconds", 5);
+        final String tokenStore = System.getProperty("loadtest.tokenStore", "inMemory");
+
+        Map<String, Object> toMap() {
+            Map<String, Object> settings = new LinkedHashMap<>();
+            settings.put("users", users);
+            settings.put("documents", documents);
+            settings.put("durationSeconds", durationSeconds);
+            settings.put("documentSizeBytes", documentSizeBytes);
+            settings.put("autosaveIntervalMs", autosaveIntervalMs);
+            settings.put("autosavesPerSession", autosavesPerSession);
+            settings.put("autosaveCoalescing", autosaveCoalescing);
+            settings.put("autosaveWindowSeconds", autosaveWindowSeconds);
+            settings.put("tokenStore", tokenStore);
+            return settings;
+        }
+    }
+
+    private final Settings settings;
+    private final File contentDirectory;
+    private final ConcurrentMap<NodeRef, Map<QName, Serializable>> nodes = ServiceStubs.repository();
+    private final List<String> fileIds = new ArrayList<>();
+    private final Map<String, String> documentNames = new HashMap<>();
+
+    private final StubDiscoveryServer discoveryServer;
+    private final WOPIMetrics wopiMetrics = new WOPIMetrics();
+    private final WOPIAccessTokenStore accessTokenStore;
+    private final LOOLServiceImpl loolService;
+    private final WOPISaveCoalescer saveCoalescer = new WOPISaveCoalescer();
+    private final TokenWebScript getToken = new TokenWebScript();
+    private final LOOLCheckFileInfoWebScript checkFileInfo = new LOOLCheckFileInfoWebScript();
+    private final LOOLGetFileWebScript getFile = new LOOLGetFileWebScript();
+    private final LOOLPutFileWebScript putFile = new LOOLPutFileWebScript();
+
+    private final Map<Operation, LongAdder> errorCounts = new EnumMap<>(Operation.class);
+    private final Map<Operation, ConcurrentMap<String, LongAdder>> errorReasons = new EnumMap<>(Operation.class);
+    private final LongAdder docChangedConflicts = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = new Settings();
+        WOPILoadGenerator generator = new WOPILoadGenerator(settings);
+        JSONObject report;
+        try {
+            report = generator.run();
+        } finally {
+            generator.close();
+        }
+        if (args.length > 0) {
+            FileUtils.writeStringToFile(new File(args[0]), report.toString(2), StandardCharsets.UTF_8);
+            System.out.println("Report written to " + args[0]);
+        }
+        System.exit(report.getLong("errors") > 0 ? 1 : 0);
+    }
+
+    WOPILoadGenerator(Settings settings) throws Exception {
+        this.settings = settings;
+        for (Operation operation : Operation.values()) {
+            errorCounts.put(operation, new LongAdder());
+            errorReasons.put(operation, new ConcurrentHashMap<>());
+        }
+        contentDirectory = Files.createTempDirectory("wopi-load").toFile();
+        for (int i = 0; i < settings.users; i++) {
+            ServiceStubs.addPerson(nodes, "user" + i);
+        }
+        for (int i = 0; i < settings.documents; i++) {
+            String fileId = UUID.randomUUID().toString();
+            String name = "Document " + i + ".odt";
+            String contentUrl = ServiceStubs.newContentUrl();
+            writeRandomContent(ServiceStubs.contentFile(contentDirectory, contentUrl), settings.documentSizeBytes);
+            ServiceStubs.addDocument(nodes, fileId, name, contentUrl, settings.documentSizeBytes);
+            fileIds.add(fileId);
+            documentNames.put(fileId, name);
+        }
+
+        discoveryServer = new StubDiscoveryServer();
+        discoveryServer.start();
+
+        NodeService nodeService = ServiceStubs.nodeService(nodes);
+        RetryingTransactionHelper retryingTransactionHelper = ServiceStubs.transactionHelper();
+        WOPIFileInfoCache fileInfoCache = new WOPIFileInfoCache();
+        ContentService contentService = ServiceStubs.contentService(nodes, contentDirectory,
+                fileInfoCache::invalidate);
+        WOPIFileAccessCache fileAccessCache = ServiceStubs.fileAccessCache(nodeService, 10000);
+        WOPIPersonInfoCache personInfoCache = new WOPIPersonInfoCache();
+        personInfoCache.setPersonService(ServiceStubs.personService(nodes));
+        personInfoCache.setNodeService(nodeService);
+
+        accessTokenStore = ServiceStubs.tokenStore(settings.tokenStore, settings.users * settings.documents);
+        loolService = ServiceStubs.loolService(accessTokenStore, nodeService, fileAccessCache);
+        loolService.setWopiBaseURL(discoveryServer.getBaseURL());
+        loolService.setWopiDiscoveryURL(discoveryServer.getDiscoveryURL());
+        loolService.setDiscoveryRefreshIntervalSeconds(3600);
+        loolService.setDiscoveryRetryMinSeconds(1);
+        loolService.setDiscoveryConnectTimeoutMs(5000);
+        loolService.setDiscoveryReadTimeoutMs(10000);
+        loolService.init();
+        awaitDiscovery(loolService.getWopiLoader());
+
+        WOPIVersioningEnabler versioningEnabler = new WOPIVersioningEnabler();
+        versioningEnabler.setNodeService(nodeService);
+        versioningEnabler.setPermissionService(ServiceStubs.permissionService());
+        getToken.setLoolService(loolService);
+        getToken.setVersioningEnabler(versioningEnabler);
+        getToken.setContentPrefetcher(new WOPIContentPrefetcher());
+        getToken.setWopiMetrics(wopiMetrics);
+
+        checkFileInfo.setLoolService(loolService);
+        checkFileInfo.setNodeService(nodeService);
+        checkFileInfo.setFileInfoCache(fileInfoCache);
+        checkFileInfo.setPersonInfoCache(personInfoCache);
+        checkFileInfo.setWopiMetrics(wopiMetrics);
+
+        getFile.setLoolService(loolService);
+        getFile.setNodeService(nodeService);
+        getFile.setContentService(contentService);
+        getFile.setContentCache(new WOPIContentCache());
+        getFile.setWopiMetrics(wopiMetrics);
+        getFile.setRetryingTransactionHelper(retryingTransactionHelper);
+
+        LockService lockService = lockService();
+        WOPITokenServiceImpl wopiTokenService = new WOPITokenServiceImpl();
+        wopiTokenService.setNodeService(nodeService);
+        wopiTokenService.setPersonService(ServiceStubs.personService(nodes));
+        wopiTokenService.setPersonInfoCache(personInfoCache);
+        wopiTokenService.setFileAccessCache(fileAccessCache);
+        wopiTokenService.setLoolService(loolService);
+        WOPILockServiceImpl wopiLockService = new WOPILockServiceImpl();
+        wopiLockService.setLoolService(loolService);
+        wopiLockService.setLockService(lockService);
+        wopiLockService.setRetryingTransactionHelper(retryingTransactionHelper);
+        wopiLockService.setLockTtlSeconds(1800);
+        saveCoalescer.setWopiMetrics(wopiMetrics);
+        saveCoalescer.setEnabled(settings.autosaveCoalescing);
+        saveCoalescer.setWindowSeconds(settings.autosaveWindowSeconds);
+        saveCoalescer.init();
+        putFile.setWopiTokenService(wopiTokenService);
+        putFile.setWopiLockService(wopiLockService);
+        putFile.setLockService(lockService);
+        putFile.setNodeService(nodeService);
+        putFile.setContentService(contentService);
+        putFile.setMimetypeService(mimetypeService());
+        putFile.setPostSaveProcessor(new WOPIPostSaveProcessor() {
+            @Override
+            public void scheduleAfterCommit(NodeRef nodeRef, WOPIAccessTokenInfo tokenInfo) {
+                // Runs after commit, off the request path
+            }
+        });
+        putFile.setSaveCoalescer(saveCoalescer);
+        putFile.setRetryingTransactionHelper(retryingTransactionHelper);
+        putFile.setWopiMetrics(wopiMetrics);
+        putFile.setCheckTimestamp(true);
+        putFile.setMaxUploadSizeBytes(524288000);
+        putFile.setMaxConcurrentUploads(32);
+        putFile.setUploadPermitWaitMs(5000);
+    }
+
+    /**
+     * Runs the virtual users until the run is over, and reports on what they did.
+     */
+    JSONObject run() throws Exception {
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+        ExecutorService executor = Executors.newFixedThreadPool(settings.users);
+        List<Future<Latencies>> results = new ArrayList<>();
+        for (int i = 0; i < settings.users; i++) {
+            final String userName = "user" + i;
+            results.add(executor.submit(() -> {
+                Latencies latencies = new Latencies();
+                while (System.nanoTime() < deadline) {
+                    runSession(userName, fileIds.get(ThreadLocalRandom.current().nextInt(fileIds.size())),
+                            deadline, latencies);
+                }
+                return latencies;
+            }));
+        }
+        Latencies latencies = new Latencies();
+        for (Future<Latencies> result : results) {
+            latencies.addAll(result.get(settings.durationSeconds + 300, TimeUnit.SECONDS));
+        }
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        executor.shutdown();
+        // Writes the autosaves still pending, as on shutdown
+        saveCoalescer.destroy();
+        return report(latencies, elapsedSeconds);
+    }
+
+    void close() throws IOException {
+        saveCoalescer.destroy();
+        loolService.getWopiLoader().stop();
+        if (accessTokenStore instanceof InMemoryWOPIAccessTokenStore) {
+            ((InMemoryWOPIAccessTokenStore) accessTokenStore).destroy();
+        }
+        discoveryServer.stop();
+        FileUtils.deleteDirectory(contentDirectory);
+    }
+
+    /**
+     * One editing session, as LOOL runs it for a user opening a document. The save on close is made even if the run
+     * is over by then.
+     */
+    private void runSession(String userName, String fileId, long deadline, Latencies latencies) {
+        String accessToken = time(Operation.GET_TOKEN, latencies, () -> issueToken(userName, fileId));
+        if (accessToken == null) {
+            return;
+        }
+        String lastModifiedTime = time(Operation.CHECK_FILE_INFO, latencies,
+                () -> checkFileInfo(userName, fileId, accessToken));
+        if (lastModifiedTime == null || time(Operation.GET_FILE, latencies,
+                () -> getFile(fileId, accessToken)) == null) {
+            return;
+        }
+        String timestamp = lastModifiedTime;
+        for (int i = 0; i < settings.autosavesPerSession && System.nanoTime() < deadline; i++) {
+            sleep((long) (settings.autosaveIntervalMs * ThreadLocalRandom.current().nextDouble(0.8, 1.2)));
+            final String saveTimestamp = timestamp;
+            String saved = time(Operation.AUTOSAVE, latencies,
+                    () -> putFile(fileId, accessToken, saveTimestamp, true));
+            if (saved != null) {
+                timestamp = saved;
+            }
+        }
+        final String saveTimestamp = timestamp;
+        time(Operation.EXIT_SAVE, latencies, () -> putFile(fileId, accessToken, saveTimestamp, false));
+    }
+
+    /**
+     * GetToken, as the user. Returns the access token.
+     */
+    private String issueToken(String userName, String fileId) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("nodeRef", ServiceStubs.nodeRef(fileId).toString());
+        parameters.put("action", ACTION);
+        WebScriptRequest req = ServiceStubs.request(Collections.emptyMap(), parameters, Collections.emptyMap(),
+                new byte[0]);
+        Status status = new Status();
+        Map<String, Object> model = AuthenticationUtil.runAs(() -> getToken.issue(req, status), userName);
+        if (status.getCode() != Status.STATUS_OK) {
+            throw new IllegalStateException("Status " + status.getCode());
+        }
+        String wopiSrcUrl = (String) model.get("wopi_src_url");
+        if (wopiSrcUrl == null || !wopiSrcUrl.startsWith(discoveryServer.getUrlSrc())) {
+            throw new IllegalStateException("WOPI src URL not from the discovery server: " + wopiSrcUrl);
+        }
+        return (String) model.get("access_token");
+    }
+
+    /**
+     * CheckFileInfo. Returns the LastModifiedTime of the file.
+     */
+    private String checkFileInfo(String userName, String fileId, String accessToken)
+            throws IOException, JSONException {
+        ServiceStubs.Response res = new ServiceStubs.Response();
+        checkFileInfo.execute(ServiceStubs.request(fileId, accessToken), res.proxy);
+        checkStatus(res);
+        JSONObject fileInfo = new JSONObject(res.body.toString());
+        if (!userName.equals(fileInfo.getString("UserId"))) {
+            throw new IllegalStateException("CheckFileInfo answered for another user");
+        }
+        if (!documentNames.get(fileId).equals(fileInfo.getString("BaseFileName"))) {
+            throw new IllegalStateException("CheckFileInfo answered for another document");
+        }
+        return fileInfo.getString("LastModifiedTime");
+    }
+
+    /**
+     * GetFile. Returns the number of bytes sent.
+     */
+    private Long getFile(String fileId, String accessToken) throws IOException {
+        ServiceStubs.Response res = new ServiceStubs.Response();
+        getFile.execute(ServiceStubs.request(fileId, accessToken), res.proxy);
+        checkStatus(res);
+        long contentLength = Long.parseLong(res.headers.get("Content-Length"));
+        if (res.content.getByteCount() != contentLength) {
+            throw new IllegalStateException("GetFile sent " + res.content.getByteCount() + " of " + contentLength
+                    + " bytes");
+        }
+        return contentLength;
+    }
+
+    /**
+     * PutFile with new content. Returns the LastModifiedTime answered. A save refused as the document was changed by
+     * another session is made again without the timestamp.
+     */
+    private String putFile(String fileId, String accessToken, String timestamp, boolean autosave)
+            throws IOException, JSONException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-WOPI-Override", "PUT");
+        headers.put("X-LOOL-WOPI-Timestamp", timestamp);
+        headers.put(autosave ? "X-LOOL-WOPI-IsAutosave" : "X-LOOL-WOPI-IsExitSave", "true");
+        byte[] body = new byte[settings.documentSizeBytes];
+        ThreadLocalRandom.current().nextBytes(body);
+        headers.put("Content-Length", Integer.toString(body.length));
+        ServiceStubs.Response res = new ServiceStubs.Response();
+        putFile.execute(ServiceStubs.request(fileId, accessToken, headers, body), res.proxy);
+        if (res.status == Status.STATUS_CONFLICT && res.body.toString().contains(DOC_CHANGED)) {
+            docChangedConflicts.increment();
+            headers.remove("X-LOOL-WOPI-Timestamp");
+            res = new ServiceStubs.Response();
+            putFile.execute(ServiceStubs.request(fileId, accessToken, headers, body), res.proxy);
+        }
+        checkStatus(res);
+        return new JSONObject(res.body.toString()).getString("LastModifiedTime");
+    }
+
+    private static void checkStatus(ServiceStubs.Response res) {
+        if (res.status >= 400) {
+            throw new WebScriptException(res.status, res.body.toString());
+        }
+    }
+
+    /**
+     * Runs the operation, recording how long it took. Returns null, and counts an error, if it failed.
+     */
+    private <T> T time(Operation operation, Latencies latencies, Call<T> call) {
+        long startNanos = System.nanoTime();
+        try {
+            return call.call();
+        } catch (Exception e) {
+            errorCounts.get(operation).increment();
+            errorReasons.get(operation).computeIfAbsent(reason(e), reason -> new LongAdder()).increment();
+            return null;
+        } finally {
+            latencies.record(operation, System.nanoTime() - startNanos);
+        }
+    }
+
+    private static String reason(Exception e) {
+        String reason = e instanceof WebScriptException
+                ? "HTTP " + ((WebScriptException) e).getStatus() + ": " + e.getMessage()
+                : e.getClass().getSimpleName() + ": " + e.getMessage();
+        int newline = reason.indexOf('\n');
+        return newline < 0 ? reason : reason.substring(0, newline);
+    }
+
+    private JSONObject report(Latencies latencies, double elapsedSeconds) throws JSONException {
+        System.out.println(String.format("%d users on %d documents for %.1f s, %s token store", settings.users,
+                settings.documents, elapsedSeconds, settings.tokenStore));
+        System.out.println(String.format("%-18s %8s %7s %9s %9s %9s %9s %9s", "Operation", "Count", "Errors",
+                "Ops/s", "p50 ms", "p95 ms", "p99 ms", "Max ms"));
+        JSONObject operations = new JSONObject();
+        long totalErrors = 0;
+        for (Operation operation : Operation.values()) {
+            long[] nanos = latencies.sorted(operation);
+            long errors = errorCounts.get(operation).sum();
+            totalErrors += errors;
+            double throughput = nanos.length / elapsedSeconds;
+            System.out.println(String.format("%-18s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f", operation.displayName,
+                    nanos.length, errors, throughput, percentileMs(nanos, 50), percentileMs(nanos, 95),
+                    percentileMs(nanos, 99), percentileMs(nanos, 100)));
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("p50", percentileMs(nanos, 50));
+            latency.put("p95", percentileMs(nanos, 95));
+            latency.put("p99", percentileMs(nanos, 99));
+            latency.put("max", percentileMs(nanos, 100));
+            Map<String, Object> reasons = new LinkedHashMap<>();
+            for (Map.Entry<String, LongAdder> reason : errorReasons.get(operation).entrySet()) {
+                reasons.put(reason.getKey(), reason.getValue().sum());
+                System.out.println("    " + reason.getValue().sum() + " x " + reason.getKey());
+            }
+            JSONObject result = new JSONObject();
+            result.put("count", nanos.length);
+            result.put("errors", errors);
+            result.put("throughputPerSecond", throughput);
+            result.put("latencyMs", new JSONObject(latency));
+            result.put("errorReasons", new JSONObject(reasons));
+            operations.put(operation.displayName, result);
+        }
+        long autosaveFailures = wopiMetrics.getAutosaveFailureCount();
+        System.out.println("Autosaves that failed to be written: " + autosaveFailures);
+        System.out.println("Saves refused as changed by another session, then saved again: "
+                + docChangedConflicts.sum());
+        System.out.println("Discovery requests: " + discoveryServer.getRequestCount());
+
+        JSONObject report = new JSONObject();
+        report.put("settings", new JSONObject(settings.toMap()));
+        report.put("elapsedSeconds", elapsedSeconds);
+        report.put("operations", operations);
+        report.put("autosaveFailures", autosaveFailures);
+        report.put("docChangedConflicts", docChangedConflicts.sum());
+        report.put("discoveryRequests", discoveryServer.getRequestCount());
+        report.put("errors", totalErrors + autosaveFailures);
+        return report;
+    }
+
+    private static double percentileMs(long[] sortedNanos, int percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+
+    private static void awaitDiscovery(WOPILoader wopiLoader) throws InterruptedException {
+        wopiLoader.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (wopiLoader.getSource() != WOPILoader.Source.SERVER) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The discovery wasn't loaded from the stub server: "
+                        + wopiLoader.getLastError());
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static void writeRandomContent(File file, int size) throws IOException {
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The LockService calls PutFile makes around a write. No document is ever locked.
+     */
+    private static LockService lockService() {
+        return (LockService) Proxy.newProxyInstance(LockService.class.getClassLoader(),
+                new Class<?>[]{LockService.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "suspendLocks":
+                        case "enableLocks":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static MimetypeService mimetypeService() {
+        return (MimetypeService) Proxy.newProxyInstance(MimetypeService.class.getClassLoader(),
+                new Class<?>[]{MimetypeService.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("guessMimetype")) {
+                        return ServiceStubs.MIMETYPE;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * The latencies recorded by one virtual user, or merged from all of them.
+     */
+    private static final class Latencies {
+        private final Map<Operation, long[]> nanos = new EnumMap<>(Operation.class);
+        private final Map<Operation, Integer> counts = new EnumMap<>(Operation.class);
+
+        private Latencies() {
+            for (Operation operation : Operation.values()) {
+                nanos.put(operation, new long[64]);
+                counts.put(operation, 0);
+            }
+        }
+
+        private void record(Operation operation, long latencyNanos) {
+            long[] recorded = nanos.get(operation);
+            int count = counts.get(operation);
+            if (count == recorded.length) {
+                recorded = Arrays.copyOf(recorded, count * 2);
+                nanos.put(operation, recorded);
+            }
+            recorded[count] = latencyNanos;
+            counts.put(operation, count + 1);
+        }
+
+        private void addAll(Latencies other) {
+            for (Operation operation : Operation.values()) {
+                long[] recorded = other.nanos.get(operation);
+                for (int i = 0; i < other.counts.get(operation); i++) {
+                    record(operation, recorded[i]);
+                }
+            }
+        }
+
+        private long[] sorted(Operation operation) {
+            long[] sorted = Arrays.copyOf(nanos.get(operation), counts.get(operation));
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * Gives access to the model of GetToken, which is otherwise only rendered through its template.
+     */
+    private static final class TokenWebScript extends LOOLGetTokenWebScript {
+        private Map<String, Object> issue(WebScriptRequest req, Status status) {
+            return executeImpl(req, status, null);
+        }
+    }
+}
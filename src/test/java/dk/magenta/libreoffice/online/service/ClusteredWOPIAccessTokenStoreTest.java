@@ -0,0 +1,140 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.repo.cache.DefaultSimpleCache;
+import org.alfresco.repo.cache.SimpleCache;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two repository nodes, each with its own ClusteredWOPIAccessTokenStore, sharing the same caches the way they share
+ * the clustered caches of an Alfresco cluster.
+ */
+public class ClusteredWOPIAccessTokenStoreTest {
+    private static final long TTL_MS = 60000;
+
+    private ClusteredWOPIAccessTokenStore nodeA;
+    private ClusteredWOPIAccessTokenStore nodeB;
+
+    @Before
+    public void setUp() {
+        SimpleCache<String, WOPIAccessTokenInfo> tokenCache = new DefaultSimpleCache<>(1000, "tokenCache");
+        SimpleCache<String, String> fileUserCache = new DefaultSimpleCache<>(1000, "fileUserCache");
+        nodeA = newStore(tokenCache, fileUserCache);
+        nodeB = newStore(tokenCache, fileUserCache);
+    }
+
+    @Test
+    public void tokenIssuedOnOneNodeIsAcceptedOnTheOther() {
+        WOPIAccessTokenInfo issued = renewOrCreate(nodeA, "file1", "alice");
+
+        WOPIAccessTokenInfo seen = nodeB.get(issued.getAccessToken());
+        assertNotNull(seen);
+        assertEquals("file1", seen.getFileId());
+        assertEquals("alice", seen.getUserName());
+        assertTrue(seen.isValid());
+    }
+
+    @Test
+    public void renewalOnTheOtherNodeKeepsTheTokenAndIsSeenEverywhere() {
+        WOPIAccessTokenInfo issued = renewOrCreate(nodeA, "file1", "alice");
+        Date renewedExpiry = new Date(issued.getExpiresAt().getTime() + TTL_MS);
+
+        WOPIAccessTokenInfo renewed = nodeB.renewOrCreate("file1", "alice", new Date(), renewedExpiry,
+                ClusteredWOPIAccessTokenStoreTest::newToken);
+
+        assertEquals(issued.getAccessToken(), renewed.getAccessToken());
+        assertEquals(renewedExpiry, nodeA.get(issued.getAccessToken()).getExpiresAt());
+    }
+
+    @Test
+    public void differentUsersGetDifferentTokensWhicheverNodeIssuesThem() {
+        WOPIAccessTokenInfo alice = renewOrCreate(nodeA, "file1", "alice");
+        WOPIAccessTokenInfo bob = renewOrCreate(nodeB, "file1", "bob");
+
+        assertNotEquals(alice.getAccessToken(), bob.getAccessToken());
+        assertEquals("bob", nodeA.get(bob.getAccessToken()).getUserName());
+        assertEquals("alice", nodeB.get(alice.getAccessToken()).getUserName());
+    }
+
+    @Test
+    public void tokenRemovedOnOneNodeIsGoneOnTheOther() {
+        WOPIAccessTokenInfo issued = renewOrCreate(nodeA, "file1", "alice");
+        assertNotNull(nodeB.get(issued.getAccessToken()));
+
+        assertTrue(nodeA.remove(issued));
+
+        assertNull(nodeB.get(issued.getAccessToken()));
+        assertFalse(nodeB.remove(issued));
+        // The renewal index is gone too, so the user gets a new token
+        assertNotEquals(issued.getAccessToken(), renewOrCreate(nodeB, "file1", "alice").getAccessToken());
+    }
+
+    @Test
+    public void expiredTokenIsReplacedByTheOtherNode() {
+        Date now = new Date();
+        WOPIAccessTokenInfo expired = nodeA.renewOrCreate("file1", "alice", new Date(now.getTime() - 2 * TTL_MS),
+                new Date(now.getTime() - TTL_MS), ClusteredWOPIAccessTokenStoreTest::newToken);
+
+        WOPIAccessTokenInfo replacement = renewOrCreate(nodeB, "file1", "alice");
+
+        assertNotEquals(expired.getAccessToken(), replacement.getAccessToken());
+        assertNull(nodeA.get(expired.getAccessToken()));
+        assertEquals(replacement.getAccessToken(), nodeA.get(replacement.getAccessToken()).getAccessToken());
+    }
+
+    @Test
+    public void sizeCountsTheTokensOfEveryNode() {
+        renewOrCreate(nodeA, "file1", "alice");
+        renewOrCreate(nodeB, "file2", "alice");
+        renewOrCreate(nodeB, "file1", "bob");
+
+        assertEquals(3, nodeA.size());
+        assertEquals(3, nodeB.size());
+    }
+
+    @Test
+    public void sizeIsOnlyRecountedAfterTheRefreshInterval() {
+        nodeA.setSizeRefreshSeconds(3600);
+        renewOrCreate(nodeA, "file1", "alice");
+        assertEquals(1, nodeA.size());
+
+        renewOrCreate(nodeB, "file2", "alice");
+
+        assertEquals(1, nodeA.size());
+        assertEquals(2, nodeB.size());
+    }
+
+    private static ClusteredWOPIAccessTokenStore newStore(SimpleCache<String, WOPIAccessTokenInfo> tokenCache,
+                                                          SimpleCache<String, String> fileUserCache) {
+        ClusteredWOPIAccessTokenStore store = new ClusteredWOPIAccessTokenStore();
+        store.setTokenCache(tokenCache);
+        store.setFileUserCache(fileUserCache);
+        store.setMaxTokens(1000);
+        // No near-cache, so every read sees what the other node wrote
+        store.setNearCacheTtlSeconds(0);
+        store.setSizeRefreshSeconds(0);
+        return store;
+    }
+
+    private static WOPIAccessTokenInfo renewOrCreate(ClusteredWOPIAccessTokenStore store, String fileId,
+                                                     String userName) {
+        Date now = new Date();
+        // A token is only valid strictly after it was issued
+        return store.renewOrCreate(fileId, userName, new Date(now.getTime() - 1000),
+                new Date(now.getTime() + TTL_MS), ClusteredWOPIAccessTokenStoreTest::newToken);
+    }
+
+    private static String newToken() {
+        return UUID.randomUUID().toString();
+    }
+}
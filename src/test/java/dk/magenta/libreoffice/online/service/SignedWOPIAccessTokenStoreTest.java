@@ -0,0 +1,111 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Base64;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Signing and verifying tokens, and the revocation list of the SignedWOPIAccessTokenStore.
+ */
+public class SignedWOPIAccessTokenStoreTest {
+    private static final long TTL_MS = 60000;
+
+    private SignedWOPIAccessTokenStore store;
+
+    @Before
+    public void setUp() {
+        store = newStore(true);
+    }
+
+    @Test
+    public void issuedTokenIsVerified() {
+        WOPIAccessTokenInfo issued = issue("file1", "alice", new Date());
+
+        WOPIAccessTokenInfo seen = store.get(issued.getAccessToken());
+        assertNotNull(seen);
+        assertEquals("file1", seen.getFileId());
+        assertEquals("alice", seen.getUserName());
+        assertEquals(issued.getExpiresAt(), seen.getExpiresAt());
+    }
+
+    @Test
+    public void tamperedTokenIsRejected() {
+        String accessToken = issue("file1", "alice", new Date()).getAccessToken();
+        int payloadStart = accessToken.indexOf('.') + 1;
+        String forgedPayload = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString("file2\nalice\n0\n9999999999999".getBytes());
+
+        assertNull(store.get(accessToken.substring(0, payloadStart) + forgedPayload
+                + accessToken.substring(accessToken.lastIndexOf('.'))));
+    }
+
+    @Test
+    public void removeRevokesOnlyThatToken() {
+        Date now = new Date();
+        WOPIAccessTokenInfo removed = issue("file1", "alice", now);
+        WOPIAccessTokenInfo kept = issue("file2", "alice", now);
+
+        assertTrue(store.remove(removed));
+
+        assertNull(store.get(removed.getAccessToken()));
+        assertNotNull(store.get(kept.getAccessToken()));
+    }
+
+    @Test
+    public void removeLeavesTheTokenValidWithoutTheRevocationList() {
+        store = newStore(false);
+        WOPIAccessTokenInfo issued = issue("file1", "alice", new Date());
+
+        assertFalse(store.remove(issued));
+
+        assertNotNull(store.get(issued.getAccessToken()));
+    }
+
+    @Test
+    public void revokeUserRejectsOnlyTokensIssuedBeforeTheRevocation() {
+        Date beforeRevocation = new Date(System.currentTimeMillis() - 1000);
+        WOPIAccessTokenInfo old = issue("file1", "alice", beforeRevocation);
+        WOPIAccessTokenInfo otherUser = issue("file1", "bob", beforeRevocation);
+
+        assertTrue(store.revokeUser("alice"));
+        WOPIAccessTokenInfo reissued = issue("file1", "alice", new Date(System.currentTimeMillis() + 1000));
+
+        assertNull(store.get(old.getAccessToken()));
+        assertNotNull(store.get(otherUser.getAccessToken()));
+        assertNotNull(store.get(reissued.getAccessToken()));
+    }
+
+    @Test
+    public void revocationsOfExpiredTokensArePruned() {
+        long now = System.currentTimeMillis();
+        WOPIAccessTokenInfo expired = store.renewOrCreate("file1", "alice", new Date(now - 2 * TTL_MS),
+                new Date(now - TTL_MS), null);
+        store.remove(expired);
+
+        store.remove(issue("file2", "alice", new Date(now)));
+
+        assertEquals(1, store.getExpiredEvictionCount());
+        assertEquals(0, store.getLiveTokenCount());
+    }
+
+    private WOPIAccessTokenInfo issue(String fileId, String userName, Date issuedAt) {
+        return store.renewOrCreate(fileId, userName, issuedAt, new Date(issuedAt.getTime() + TTL_MS), null);
+    }
+
+    private static SignedWOPIAccessTokenStore newStore(boolean revocationEnabled) {
+        SignedWOPIAccessTokenStore store = new SignedWOPIAccessTokenStore();
+        store.setKeys("k1:" + Base64.getEncoder().encodeToString(new byte[32]));
+        store.setActiveKeyId("k1");
+        store.setRevocationEnabled(revocationEnabled);
+        store.init();
+        return store;
+    }
+}
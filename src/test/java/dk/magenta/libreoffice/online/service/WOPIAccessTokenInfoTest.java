@@ -0,0 +1,45 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The validity window of a token, from the instant it is issued up to, but not including, its expiry.
+ */
+public class WOPIAccessTokenInfoTest {
+    private static final long ISSUED_AT = 1525435200000L;
+    private static final long EXPIRES_AT = ISSUED_AT + 24 * 60 * 60 * 1000L;
+
+    private final WOPIAccessTokenInfo tokenInfo = new WOPIAccessTokenInfo("token", new Date(ISSUED_AT),
+            new Date(EXPIRES_AT), "0d3c5a2e-7b6f-4c1e-9f5a-3b2d1c0e9f8a", "abeecher");
+
+    @Test
+    public void validAtTheInstantItIsIssued() {
+        assertTrue(tokenInfo.isValid(new Date(ISSUED_AT)));
+    }
+
+    @Test
+    public void validUntilItExpires() {
+        assertTrue(tokenInfo.isValid(new Date(ISSUED_AT + 1)));
+        assertTrue(tokenInfo.isValid(new Date(EXPIRES_AT - 1)));
+        assertFalse(tokenInfo.isValid(new Date(EXPIRES_AT)));
+    }
+
+    @Test
+    public void notValidBeforeItIsIssued() {
+        assertFalse(tokenInfo.isValid(new Date(ISSUED_AT - 1)));
+    }
+
+    @Test
+    public void aNewTokenIsValidStraightAway() {
+        Date now = new Date();
+        WOPIAccessTokenInfo issued = new WOPIAccessTokenInfo("token", now, new Date(now.getTime() + 60000),
+                "0d3c5a2e-7b6f-4c1e-9f5a-3b2d1c0e9f8a", "abeecher");
+
+        assertTrue(issued.isValid(now));
+    }
+}
@@ -0,0 +1,95 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class WOPIDiscoveryTest {
+    private static final String SRC_URL = "https://lool.example.com/loleaflet/dist/loleaflet.html?";
+
+    private static WOPIDiscovery bundled;
+
+    @BeforeClass
+    public static void parseBundledDiscovery() throws Exception {
+        try (InputStream inputStream = WOPIDiscoveryTest.class.getResourceAsStream("/discovery.xml")) {
+            bundled = WOPIDiscovery.parse(inputStream, urlSrc -> SRC_URL);
+        }
+    }
+
+    @Test
+    public void looksUpBundledDiscoveryByMimeTypeAndAction() {
+        assertEquals(SRC_URL, bundled.getSrcURL("application/vnd.oasis.opendocument.text", "edit"));
+        assertEquals(SRC_URL, bundled.getSrcURL("application/vnd.oasis.opendocument.spreadsheet", "edit"));
+    }
+
+    @Test
+    public void looksUpBundledDiscoveryByExtensionAndAction() {
+        assertEquals(SRC_URL, bundled.getSrcURLForExtension("odt", "edit"));
+        assertEquals(SRC_URL, bundled.getSrcURLForExtension("ods", "edit"));
+    }
+
+    @Test
+    public void unknownKeysAreNotFound() {
+        assertEquals("", bundled.getSrcURL("application/x-unknown", "edit"));
+        assertEquals("", bundled.getSrcURL("application/vnd.oasis.opendocument.text", "unknown"));
+        assertEquals("", bundled.getSrcURLForExtension("unknown", "edit"));
+        assertEquals("", bundled.getSrcURL(null, "edit"));
+        assertEquals("", bundled.getSrcURL("application/vnd.oasis.opendocument.text", null));
+    }
+
+    @Test
+    public void keysAreNotInterpretedAsExpressions() {
+        assertEquals("", bundled.getSrcURL("x' or '1'='1", "edit"));
+        assertEquals("", bundled.getSrcURL("application/vnd.oasis.opendocument.text", "x' or '1'='1"));
+    }
+
+    @Test
+    public void firstOccurrenceWins() throws Exception {
+        WOPIDiscovery discovery = parse("<wopi-discovery><net-zone name=\"external-http\">"
+                + "<app name=\"text/plain\"><action name=\"edit\" ext=\"txt\" urlsrc=\"first\"/></app>"
+                + "<app name=\"text/plain\"><action name=\"edit\" ext=\"txt\" urlsrc=\"second\"/></app>"
+                + "</net-zone></wopi-discovery>");
+
+        assertEquals("first", discovery.getSrcURL("text/plain", "edit"));
+        assertEquals("first", discovery.getSrcURLForExtension("txt", "edit"));
+    }
+
+    @Test
+    public void indexesEveryActionOfAnApp() throws Exception {
+        WOPIDiscovery discovery = parse("<wopi-discovery><net-zone name=\"external-http\">"
+                + "<app name=\"text/plain\">"
+                + "<action name=\"edit\" ext=\"txt\" urlsrc=\"edit-url\"/>"
+                + "<action name=\"view\" ext=\"txt\" urlsrc=\"view-url\"/>"
+                + "</app>"
+                + "</net-zone></wopi-discovery>");
+
+        assertEquals("edit-url", discovery.getSrcURL("text/plain", "edit"));
+        assertEquals("view-url", discovery.getSrcURL("text/plain", "view"));
+    }
+
+    @Test
+    public void actionsOutsideAnAppAreIgnored() throws Exception {
+        WOPIDiscovery discovery = parse("<wopi-discovery><net-zone name=\"external-http\">"
+                + "<action name=\"edit\" ext=\"txt\" urlsrc=\"stray\"/>"
+                + "<app name=\"text/plain\"/>"
+                + "</net-zone></wopi-discovery>");
+
+        assertEquals("", discovery.getSrcURL("text/plain", "edit"));
+        assertEquals("", discovery.getSrcURLForExtension("txt", "edit"));
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void malformedDiscoveryIsRejected() throws Exception {
+        parse("<wopi-discovery><net-zone>");
+    }
+
+    private static WOPIDiscovery parse(String xml) throws XMLStreamException {
+        return WOPIDiscovery.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
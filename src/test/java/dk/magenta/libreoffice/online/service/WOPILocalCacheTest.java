@@ -0,0 +1,218 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tokens cached against the node they give access to, the way the WOPIFileAccessCache uses the cache.
+ */
+public class WOPILocalCacheTest {
+    private static final NodeRef FILE1 = nodeRef("0d3c5a2e-7b6f-4c1e-9f5a-3b2d1c0e9f8a");
+    private static final NodeRef FILE2 = nodeRef("6a1f0c3b-2d4e-4f5a-8b9c-7d6e5f4a3b2c");
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void loadsOnceAndThenServesFromTheCache() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+
+        assertEquals(FILE1, cache.get("token1", token -> load(FILE1)));
+        assertEquals(FILE1, cache.get("token1", token -> load(FILE2)));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void nullIsNotCached() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+
+        assertNull(cache.get("token1", token -> load(null)));
+        assertNull(cache.get("token1", token -> load(null)));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void entriesAreNotUsedAfterTheirTimeToLive() {
+        WOPILocalCache<String, NodeRef> cache = newCache(0, 100);
+
+        cache.put("token1", FILE1);
+
+        assertNull(cache.get("token1"));
+    }
+
+    @Test
+    public void invalidatingANodeDropsEveryKeyOfItAndNothingElse() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+        cache.put("token1", FILE1);
+        cache.put("token2", FILE1);
+        cache.put("token3", FILE2);
+
+        cache.invalidateNode(FILE1);
+
+        assertNull(cache.get("token1"));
+        assertNull(cache.get("token2"));
+        assertEquals(FILE2, cache.get("token3"));
+    }
+
+    @Test
+    public void keyPutAgainForAnotherNodeIsOnlyDroppedWithThatNode() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+        cache.put("token1", FILE1);
+        cache.put("token1", FILE2);
+
+        cache.invalidateNode(FILE1);
+        assertEquals(FILE2, cache.get("token1"));
+
+        cache.invalidateNode(FILE2);
+        assertNull(cache.get("token1"));
+    }
+
+    @Test
+    public void keyRemovedAndPutAgainIsStillIndexed() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+        cache.put("token1", FILE1);
+        cache.remove("token1");
+        cache.put("token1", FILE1);
+
+        cache.invalidateNode(FILE1);
+
+        assertNull(cache.get("token1"));
+    }
+
+    @Test
+    public void loadRacingWithAnInvalidationIsNotCached() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+
+        cache.get("token1", token -> {
+            cache.invalidateNode(FILE1);
+            return load(FILE1);
+        });
+
+        assertNull(cache.get("token1"));
+    }
+
+    @Test
+    public void loadRacingWithAnInvalidationOfItsKeyIsNotCached() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+
+        cache.get("token1", token -> {
+            cache.invalidate("token1");
+            return load(FILE1);
+        });
+
+        assertNull(cache.get("token1"));
+    }
+
+    @Test
+    public void loadRacingWithInvalidationsOfOtherKeysAndNodesIsCached() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+
+        cache.get("token1", token -> {
+            cache.invalidate("token2");
+            cache.invalidateNode(FILE2);
+            return load(FILE1);
+        });
+
+        assertEquals(FILE1, cache.get("token1"));
+    }
+
+    @Test
+    public void loadRacingWithInvalidateAllIsNotCached() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+
+        cache.get("token1", token -> {
+            cache.invalidateAll();
+            return load(FILE1);
+        });
+
+        assertNull(cache.get("token1"));
+    }
+
+    @Test
+    public void invalidateAllMakesEveryEntryStale() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+        cache.put("token1", FILE1);
+        cache.put("token2", FILE2);
+
+        cache.invalidateAll();
+
+        assertNull(cache.get("token1"));
+        assertNull(cache.get("token2"));
+        cache.put("token1", FILE1);
+        assertEquals(FILE1, cache.get("token1"));
+    }
+
+    @Test
+    public void fullCacheEvictsATenthAndKeepsTheIndexInStep() {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 100);
+        for (int i = 0; i < 100; i++) {
+            cache.put("token" + i, i % 2 == 0 ? FILE1 : FILE2);
+        }
+
+        cache.put("token100", FILE1);
+
+        assertEquals(91, cache.size());
+        assertEquals(10, cache.getOverflowEvictionCount());
+        cache.invalidateNode(FILE1);
+        cache.invalidateNode(FILE2);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void concurrentPutsAndInvalidationsLeaveNothingBehind() throws Exception {
+        WOPILocalCache<String, NodeRef> cache = newCache(60, 1000);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 20000; i++) {
+                    NodeRef file = i % 2 == 0 ? FILE1 : FILE2;
+                    cache.put("token" + thread + "-" + (i % 500), file);
+                    if (i % 7 == 0) {
+                        cache.invalidateNode(file);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        cache.invalidateNode(FILE1);
+        cache.invalidateNode(FILE2);
+
+        assertEquals(0, cache.size());
+    }
+
+    private static WOPILocalCache<String, NodeRef> newCache(long ttlSeconds, int maxItems) {
+        return new WOPILocalCache<>(ttlSeconds, maxItems, nodeRef -> nodeRef);
+    }
+
+    private NodeRef load(NodeRef nodeRef) {
+        loads.incrementAndGet();
+        return nodeRef;
+    }
+
+    private static NodeRef nodeRef(String id) {
+        return new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, id);
+    }
+}
@@ -0,0 +1,267 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.lock.LockService;
+import org.alfresco.service.cmr.lock.UnableToAquireLockException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Hammers the lock table from many threads, with the Alfresco LockService and LOOLService stubbed out. The stubbed
+ * LockService refuses to lock a node that is already locked, as it does for a node locked by another user.
+ */
+public class WOPILockServiceImplTest {
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 2000;
+    private static final String FILE_ID = "0d3c5a2e-7b6f-4c1e-9f5a-3b2d1c0e9f8a";
+
+    private WOPILockServiceImpl lockService;
+    private StubLockService alfrescoLocks;
+    private final AtomicInteger newTransactions = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        alfrescoLocks = new StubLockService();
+        lockService = newLockService(1800);
+    }
+
+    @Test
+    public void onlyOneSessionHoldsTheLockAtATime() throws Exception {
+        AtomicReference<String> holder = new AtomicReference<>();
+        List<String> violations = hammer(lockId -> {
+            WOPILockResult locked = lockService.lock(FILE_ID, lockId);
+            if (!locked.isSuccess()) {
+                return null;
+            }
+            if (!holder.compareAndSet(null, lockId)) {
+                return lockId + " got the lock held by " + holder.get();
+            }
+            if (!lockService.refreshLock(FILE_ID, lockId).isSuccess()) {
+                return lockId + " could not refresh its own lock";
+            }
+            if (!lockId.equals(lockService.getLock(FILE_ID))) {
+                return lockId + " does not see its own lock";
+            }
+            if (lockService.lock(FILE_ID, "intruder").isSuccess()) {
+                return "intruder got the lock held by " + lockId;
+            }
+            holder.set(null);
+            if (!lockService.unlock(FILE_ID, lockId).isSuccess()) {
+                return lockId + " could not unlock its own lock";
+            }
+            return null;
+        });
+
+        assertEquals(new ArrayList<String>(), violations);
+        assertEquals("", lockService.getLock(FILE_ID));
+        assertEquals(new ArrayList<String>(), alfrescoLocks.violations);
+        assertTrue("Alfresco locks leaked: " + alfrescoLocks.held, alfrescoLocks.held.isEmpty());
+        assertTrue(alfrescoLocks.acquired.get() > 0);
+        assertEquals(alfrescoLocks.acquired.get(), alfrescoLocks.released.get());
+    }
+
+    @Test
+    public void relockingNeverLeaksAlfrescoLocks() throws Exception {
+        List<String> violations = hammer(lockId -> {
+            if (!lockService.lock(FILE_ID, lockId).isSuccess()) {
+                return null;
+            }
+            String newLockId = lockId + "-relocked";
+            if (!lockService.unlockAndRelock(FILE_ID, lockId, newLockId).isSuccess()) {
+                return lockId + " could not relock its own lock";
+            }
+            if (lockService.unlock(FILE_ID, lockId).isSuccess()) {
+                return lockId + " unlocked a lock it had replaced";
+            }
+            if (!lockService.unlock(FILE_ID, newLockId).isSuccess()) {
+                return newLockId + " could not unlock its own lock";
+            }
+            return null;
+        });
+
+        assertEquals(new ArrayList<String>(), violations);
+        assertEquals(new ArrayList<String>(), alfrescoLocks.violations);
+        assertTrue("Alfresco locks leaked: " + alfrescoLocks.held, alfrescoLocks.held.isEmpty());
+    }
+
+    @Test
+    public void sweepReleasesTheAlfrescoLocksOfExpiredLocks() throws Exception {
+        // Every lock has expired as soon as it is taken
+        lockService = newLockService(0);
+        List<String> violations = hammer(lockId -> {
+            lockService.lock(FILE_ID, lockId);
+            lockService.sweep();
+            return null;
+        });
+        lockService.sweep();
+
+        assertEquals(new ArrayList<String>(), violations);
+        assertEquals("", lockService.getLock(FILE_ID));
+        assertEquals(new ArrayList<String>(), alfrescoLocks.violations);
+        assertTrue("Alfresco locks leaked: " + alfrescoLocks.held, alfrescoLocks.held.isEmpty());
+    }
+
+    @Test
+    public void lockHeldInAlfrescoIsAConflict() {
+        alfrescoLocks.held.add(nodeRef(FILE_ID));
+
+        WOPILockResult result = lockService.lock(FILE_ID, "session1");
+
+        assertFalse(result.isSuccess());
+        assertEquals("", lockService.getLock(FILE_ID));
+    }
+
+    @Test
+    public void failureToTakeTheAlfrescoLockGivesTheLockUp() {
+        alfrescoLocks.failure = new AccessDeniedException("Write access denied");
+        try {
+            lockService.lock(FILE_ID, "session1");
+            fail("The failure to take the Alfresco lock was swallowed");
+        } catch (AccessDeniedException e) {
+            // expected
+        }
+        alfrescoLocks.failure = null;
+
+        assertEquals("", lockService.getLock(FILE_ID));
+        assertTrue(lockService.lock(FILE_ID, "session2").isSuccess());
+        assertEquals("session2", lockService.getLock(FILE_ID));
+    }
+
+    @Test
+    public void alfrescoLockIsTakenInATransactionOfItsOwn() {
+        lockService.lock(FILE_ID, "session1");
+
+        assertEquals(1, newTransactions.get());
+    }
+
+    private WOPILockServiceImpl newLockService(long lockTtlSeconds) {
+        WOPILockServiceImpl service = new WOPILockServiceImpl();
+        service.setLockService(alfrescoLocks.proxy);
+        service.setLoolService((LOOLService) Proxy.newProxyInstance(LOOLService.class.getClassLoader(),
+                new Class<?>[]{LOOLService.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getNodeRefForFileId")) {
+                        return nodeRef((String) args[0]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+        service.setRetryingTransactionHelper(new RetryingTransactionHelper() {
+            @Override
+            public <R> R doInTransaction(RetryingTransactionCallback<R> cb, boolean readOnly, boolean requiresNew) {
+                if (requiresNew) {
+                    newTransactions.incrementAndGet();
+                }
+                try {
+                    return cb.execute();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        service.setLockTtlSeconds(lockTtlSeconds);
+        service.setAlfrescoLockTimeoutSeconds(86400);
+        return service;
+    }
+
+    /**
+     * Runs the round on every thread ROUNDS times, each thread with its own lock id, all starting at once.
+     *
+     * @return the violations reported by the rounds
+     */
+    private List<String> hammer(Round round) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final String lockId = "session" + t;
+            results.add(executor.submit(() -> {
+                List<String> violations = new ArrayList<>();
+                start.await();
+                for (int i = 0; i < ROUNDS; i++) {
+                    String violation = round.run(lockId);
+                    if (violation != null) {
+                        violations.add(violation);
+                    }
+                }
+                return violations;
+            }));
+        }
+        start.countDown();
+        List<String> violations = new ArrayList<>();
+        for (Future<List<String>> result : results) {
+            violations.addAll(result.get(60, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        return violations;
+    }
+
+    private static NodeRef nodeRef(String fileId) {
+        return new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, fileId);
+    }
+
+    private interface Round {
+        /**
+         * @return a description of what went wrong, or null
+         */
+        String run(String lockId);
+    }
+
+    /**
+     * Just enough of the LockService: lock and unlock, counting what is held.
+     */
+    private static final class StubLockService {
+        private final Set<NodeRef> held = ConcurrentHashMap.newKeySet();
+        private final List<String> violations = new ArrayList<>();
+        private final AtomicInteger acquired = new AtomicInteger();
+        private final AtomicInteger released = new AtomicInteger();
+        private volatile RuntimeException failure;
+
+        private final LockService proxy = (LockService) Proxy.newProxyInstance(LockService.class.getClassLoader(),
+                new Class<?>[]{LockService.class}, (proxy, method, args) -> {
+                    NodeRef nodeRef = (NodeRef) args[0];
+                    switch (method.getName()) {
+                        case "lock":
+                            if (failure != null) {
+                                throw failure;
+                            }
+                            if (!held.add(nodeRef)) {
+                                throw new UnableToAquireLockException(nodeRef);
+                            }
+                            acquired.incrementAndGet();
+                            return null;
+                        case "unlock":
+                            if (!held.remove(nodeRef)) {
+                                synchronized (violations) {
+                                    violations.add("Released the Alfresco lock on " + nodeRef + " it didn't hold");
+                                }
+                            }
+                            released.incrementAndGet();
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
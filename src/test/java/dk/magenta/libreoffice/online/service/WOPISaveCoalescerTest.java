@@ -0,0 +1,234 @@
+package dk.magenta.libreoffice.online.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unless a test shortens it, the window is long enough that nothing is flushed by the timer; pending autosaves are
+ * flushed by destroy().
+ */
+public class WOPISaveCoalescerTest {
+    private static final String FILE_ID = "0d3c5a2e-7b6f-4c1e-9f5a-3b2d1c0e9f8a";
+    private static final String ACCESS_TOKEN = "token1";
+    private static final Date LAST_MODIFIED = new Date(1500000000000L);
+    private static final Date WRITTEN = new Date(LAST_MODIFIED.getTime() + 60000);
+
+    private WOPISaveCoalescer coalescer;
+    private WOPIMetrics wopiMetrics;
+    private final List<File> written = Collections.synchronizedList(new ArrayList<>());
+    private final List<File> created = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        wopiMetrics = new WOPIMetrics();
+        coalescer = newCoalescer(true);
+    }
+
+    @After
+    public void tearDown() {
+        coalescer.destroy();
+        for (File file : created) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void onlyTheNewestAutosaveIsWritten() throws Exception {
+        File first = content();
+        File second = content();
+
+        assertEquals(LAST_MODIFIED, defer(first));
+        assertEquals(LAST_MODIFIED, defer(second));
+        assertFalse(first.exists());
+        coalescer.destroy();
+
+        assertEquals(Collections.singletonList(second), written);
+        assertFalse(second.exists());
+    }
+
+    @Test
+    public void saveWrittenNowDiscardsThePendingAutosave() throws Exception {
+        File autosave = content();
+        File save = content();
+
+        defer(autosave);
+        coalescer.writeNow(FILE_ID, save, this::write);
+        coalescer.destroy();
+
+        assertEquals(Collections.singletonList(save), written);
+        assertFalse(autosave.exists());
+    }
+
+    @Test
+    public void autosaveParkedDuringTheUnchangedCheckIsNotDiscarded() throws Exception {
+        File autosave = content();
+        CountDownLatch checking = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> discarded = executor.submit(() -> coalescer.discardIfUnchanged(FILE_ID, () -> {
+                checking.countDown();
+                sleep(200);
+                return true;
+            }));
+            checking.await();
+            Future<Date> parked = executor.submit(() -> defer(autosave));
+
+            assertTrue(discarded.get(10, TimeUnit.SECONDS));
+            assertNotNull(parked.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        coalescer.destroy();
+
+        assertEquals(Collections.singletonList(autosave), written);
+    }
+
+    @Test
+    public void failedAutosaveIsCountedAndTheNextOneIsNotParked() throws Exception {
+        coalescer.defer(FILE_ID, ACCESS_TOKEN, content(), content -> {
+            throw new IllegalStateException("Content store is full");
+        }, () -> LAST_MODIFIED);
+        coalescer.destroy();
+
+        assertEquals(1, wopiMetrics.getAutosaveFailureCount());
+        File next = content();
+        assertNull(defer(next));
+        assertTrue(written.isEmpty());
+        assertTrue(next.exists());
+    }
+
+    @Test
+    public void autosavesAreParkedAgainOnceASaveIsWritten() throws Exception {
+        coalescer.destroy();
+        coalescer = newCoalescer(true);
+        coalescer.setWindowSeconds(1);
+        coalescer.defer(FILE_ID, ACCESS_TOKEN, content(), content -> {
+            throw new IllegalStateException("Content store is full");
+        }, () -> LAST_MODIFIED);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (wopiMetrics.getAutosaveFailureCount() == 0 && System.currentTimeMillis() < deadline) {
+            sleep(50);
+        }
+        assertNull(defer(content()));
+
+        File save = content();
+        coalescer.writeNow(FILE_ID, save, this::write);
+
+        assertNotNull(defer(content()));
+        assertEquals(Collections.singletonList(save), written);
+    }
+
+    @Test
+    public void autosaveIsNotParkedWhileASaveOfTheFileIsBeingWritten() throws Exception {
+        File save = content();
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch finishWrite = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> saved = executor.submit(() -> coalescer.writeNow(FILE_ID, save, content -> {
+                writing.countDown();
+                try {
+                    finishWrite.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return write(content);
+            }));
+            writing.await();
+
+            // Answered straight away, as no lock is held while the save is written
+            File autosave = content();
+            assertNull(defer(autosave));
+            assertTrue(autosave.exists());
+
+            finishWrite.countDown();
+            saved.get(10, TimeUnit.SECONDS);
+        } finally {
+            finishWrite.countDown();
+            executor.shutdown();
+        }
+        assertNotNull(defer(content()));
+    }
+
+    @Test
+    public void onlyTheCoalescedWriteOfTheSameTokenIsRecognised() throws Exception {
+        defer(content());
+        coalescer.destroy();
+
+        assertTrue(coalescer.isCoalescedWrite(FILE_ID, ACCESS_TOKEN, LAST_MODIFIED.getTime(), WRITTEN.getTime()));
+        // Another LOOL session still holding the same LastModifiedTime
+        assertFalse(coalescer.isCoalescedWrite(FILE_ID, "token2", LAST_MODIFIED.getTime(), WRITTEN.getTime()));
+        assertFalse(coalescer.isCoalescedWrite(FILE_ID, ACCESS_TOKEN, WRITTEN.getTime() - 1, WRITTEN.getTime()));
+    }
+
+    @Test
+    public void aSaveFromAnotherSessionIsNotTakenForTheCoalescedWrite() throws Exception {
+        Date overwritten = new Date(WRITTEN.getTime() + 60000);
+        defer(content());
+        coalescer.destroy();
+
+        // The other session saves on top of the coalesced write
+        coalescer.writeNow(FILE_ID, content(), content -> overwritten);
+
+        assertFalse(coalescer.isCoalescedWrite(FILE_ID, ACCESS_TOKEN, LAST_MODIFIED.getTime(), WRITTEN.getTime()));
+        assertFalse(coalescer.isCoalescedWrite(FILE_ID, ACCESS_TOKEN, LAST_MODIFIED.getTime(),
+                overwritten.getTime()));
+    }
+
+    @Test
+    public void coalescingIsOffUnlessEnabled() {
+        assertFalse(newCoalescer(false).isEnabled());
+        assertTrue(newCoalescer(true).isEnabled());
+    }
+
+    private Date defer(File content) {
+        return coalescer.defer(FILE_ID, ACCESS_TOKEN, content, this::write, () -> LAST_MODIFIED);
+    }
+
+    private Date write(File content) {
+        written.add(content);
+        return WRITTEN;
+    }
+
+    private WOPISaveCoalescer newCoalescer(boolean enabled) {
+        WOPISaveCoalescer coalescer = new WOPISaveCoalescer();
+        coalescer.setWopiMetrics(wopiMetrics);
+        coalescer.setEnabled(enabled);
+        coalescer.setWindowSeconds(3600);
+        coalescer.init();
+        return coalescer;
+    }
+
+    private File content() throws IOException {
+        File file = File.createTempFile("autosave", ".tmp");
+        created.add(file);
+        return file;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}